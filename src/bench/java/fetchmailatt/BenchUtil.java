@@ -0,0 +1,74 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: FetchMailAtt
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2015 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+package fetchmailatt;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.*;
+
+
+/** Helpers shared by the benchmarks. */
+public class BenchUtil {
+
+    /** Load the config from a file path or from the classpath, as the app does. */
+    public static Map<String, String> loadConfig(String cfgName) throws IOException {
+        Properties  conf = Util.loadProperties(Paths.get(cfgName));
+        if (conf == null)
+            conf = Util.loadResourceProperties(cfgName);
+        if (conf == null)
+            throw new FileNotFoundException("Config file " + cfgName + " not exists");
+        return Util.toMap(conf);
+    }
+
+    /** Copy of the config that downloads everything in range into downloadDir, without saved state or pause at exit. */
+    public static Map<String, String> benchConfig(Map<String, String> config, Path downloadDir) {
+        Map<String, String> benchCfg = new HashMap<>(config);
+        benchCfg.put("download.directory", downloadDir.toString());
+        benchCfg.put("process.resume.from.last", "no");
+        benchCfg.put("process.sleep.before.exit", "0");
+        return benchCfg;
+    }
+
+    public static long[] countFilesAndBytes(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            List<Path>  files = paths.filter(Files::isRegularFile).collect(Collectors.toList());
+            long        bytes = 0;
+            for (Path f : files)
+                bytes += Files.size(f);
+            return new long[] { files.size(), bytes };
+        }
+    }
+
+    public static void deleteTree(Path dir) throws IOException {
+        if (!Files.exists(dir))
+            return;
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path p : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList()))
+                Files.delete(p);
+        }
+    }
+
+    public static void printRow(String label, int setting, double sec, long files, long bytes) {
+        System.out.println(String.format("%-12s %6d %10.2f %8d %12s %10.2f %10.2f", label, setting, sec, files, Util.formatByteSize(bytes, 1),
+                                         files / Math.max(sec, 0.001), bytes / 1048576.0 / Math.max(sec, 0.001)));
+    }
+
+    public static void printHeader(String label) {
+        System.out.println(String.format("%-12s %6s %10s %8s %12s %10s %10s", "", label, "sec", "files", "bytes", "files/s", "MB/s"));
+    }
+
+}
@@ -0,0 +1,58 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: FetchMailAtt
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2015 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+package fetchmailatt;
+
+import java.nio.file.*;
+import java.util.*;
+
+
+/**
+ * Download throughput against the number of mail server connections.
+ * Usage: ConnectionScalingBench config [connection counts, default 1 2 4 8]
+ *
+ * Each round downloads all the matched attachments of the config into a fresh temp directory.
+ */
+public class ConnectionScalingBench {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.out.println("Usage: ConnectionScalingBench config [connections ...]");
+            return;
+        }
+
+        Map<String, String> config = BenchUtil.loadConfig(args[0]);
+        int[]               counts = args.length > 1 ? Arrays.stream(args, 1, args.length).mapToInt(Integer::parseInt).toArray() : new int[] {1, 2, 4, 8};
+        int                 workers = Math.max(Arrays.stream(counts).max().getAsInt(), new Cfg(config).asInt("process.parallel.workers").orElse(1));
+
+        BenchUtil.printHeader("conns");
+        for (int connections : counts) {
+            Path                downloadDir = Files.createTempDirectory("fetchmailatt-bench");
+            Map<String, String> benchCfg = BenchUtil.benchConfig(config, downloadDir);
+            benchCfg.put("process.parallel.workers", String.valueOf(workers));
+            benchCfg.put("process.parallel.connections", String.valueOf(connections));
+
+            long                startNS = System.nanoTime();
+            MailService.fetchAttachments(benchCfg, "bench-connections", true, false);
+            double              sec = (System.nanoTime() - startNS) / 1e9;
+            long[]              counted = BenchUtil.countFilesAndBytes(downloadDir);
+
+            BenchUtil.printRow("connections", connections, sec, counted[0], counted[1]);
+            BenchUtil.deleteTree(downloadDir);
+            Files.deleteIfExists(Util.getStateFile("bench-connections"));
+        }
+    }
+
+}
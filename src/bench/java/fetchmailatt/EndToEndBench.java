@@ -0,0 +1,113 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: FetchMailAtt
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2015 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+package fetchmailatt;
+
+import java.nio.file.*;
+import java.util.*;
+
+
+/**
+ * End-to-end throughput against the number of download workers, on the in-process IMAP server populated with a generated corpus.
+ * Usage: EndToEndBench [key=value ...]
+ *
+ *   messages=200               number of messages
+ *   attachments=2              attachments per message
+ *   sizes=lognormal:64k,1.0    attachment size distribution, see CorpusGenerator.parseSizes
+ *   html=0                     size of an html body in each message, e.g. 200k for newsletters
+ *   latency=20                 one way latency in ms, 0 for none
+ *   bandwidth=0                bandwidth limit, e.g. 10m for 10MB/s, 0 for none
+ *   workers=1,2,4,8            process.parallel.workers of the rounds
+ *   connections=1              process.parallel.connections, or "workers" to match the workers
+ *   adaptive=no                process.parallel.adaptive, with the workers as the most downloads in flight
+ *   min.msgs.per.sec=0         fail if the best round is slower, for catching regressions
+ *   min.mb.per.sec=0
+ *
+ * Exits with 1 when a threshold is missed or a round doesn't download all the attachments, failing the gradle task.
+ */
+public class EndToEndBench {
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> params = new HashMap<>();
+        for (String arg : args) {
+            String[]    kv = arg.split("=", 2);
+            if (kv.length != 2) {
+                System.out.println("Usage: EndToEndBench [key=value ...]");
+                return;
+            }
+            params.put(kv[0], kv[1]);
+        }
+        Cfg                 cfg = new Cfg(params);
+        CorpusGenerator     corpus = new CorpusGenerator(cfg.asInt("messages").orElse(200), cfg.asInt("attachments").orElse(2),
+                                                         CorpusGenerator.parseSizes(cfg.val("sizes").orElse("lognormal:64k,1.0")), 1)
+                                .htmlBody((int)Util.parseByteSize(cfg.val("html").orElse("0"), 0));
+        int[]               workerCounts = Util.splitParts(cfg.val("workers").orElse("1,2,4,8"), ",").mapToInt(Integer::parseInt).toArray();
+        String              connections = cfg.val("connections").orElse("1");
+        double              minMsgsPerSec = cfg.asDouble("min.msgs.per.sec").orElse(0d);
+        double              minMBPerSec = cfg.asDouble("min.mb.per.sec").orElse(0d);
+        double              bestMsgsPerSec = 0;
+        double              bestMBPerSec = 0;
+        List<String>        failures = new ArrayList<>();
+
+        try (ImapFixture imap = new ImapFixture().populate(corpus)) {
+            long    latency = cfg.asLong("latency").orElse(20L);
+            long    bandwidth = Util.parseByteSize(cfg.val("bandwidth").orElse("0"), 0);
+            if (latency > 0 || bandwidth > 0)
+                imap.throttle(latency, bandwidth);
+            System.out.println("Corpus: " + corpus.messageCount() + " messages, " + corpus.attachmentCount() + " attachments, " +
+                               Util.formatByteSize(corpus.attachmentBytes(), 1) + ", latency " + latency + "ms, bandwidth " +
+                               (bandwidth > 0 ? Util.formatByteSize(bandwidth, 1) + "/s" : "unlimited"));
+            System.out.println(String.format("%8s %6s %10s %8s %12s %10s %10s", "workers", "conns", "sec", "files", "bytes", "msgs/s", "MB/s"));
+
+            for (int workers : workerCounts) {
+                Path                downloadDir = Files.createTempDirectory("fetchmailatt-e2e");
+                Map<String, String> config = imap.config(downloadDir);
+                int                 conns = connections.equals("workers") ? workers : Integer.parseInt(connections);
+                config.put("process.parallel.workers", String.valueOf(workers));
+                config.put("process.parallel.connections", String.valueOf(conns));
+                config.put("process.parallel.adaptive", cfg.val("adaptive").orElse("no"));
+
+                FetchJob            job = new FetchJob(new Cfg(config), "bench-endtoend", true, false);
+                long                startNS = System.nanoTime();
+                job.run();
+                double              sec = (System.nanoTime() - startNS) / 1e9;
+                long[]              counted = BenchUtil.countFilesAndBytes(downloadDir);
+                double              msgsPerSec = job.getStats().get("messages.scanned") / sec;
+                double              mbPerSec = counted[1] / 1048576.0 / sec;
+
+                System.out.println(String.format("%8d %6d %10.2f %8d %12s %10.1f %10.2f", workers, conns, sec, counted[0],
+                                                 Util.formatByteSize(counted[1], 1), msgsPerSec, mbPerSec));
+                if (counted[0] != corpus.attachmentCount() || counted[1] != corpus.attachmentBytes())
+                    failures.add("workers " + workers + " downloaded " + counted[0] + " files of " + counted[1] + " bytes, expected " +
+                                 corpus.attachmentCount() + " files of " + corpus.attachmentBytes() + " bytes");
+                bestMsgsPerSec = Math.max(bestMsgsPerSec, msgsPerSec);
+                bestMBPerSec = Math.max(bestMBPerSec, mbPerSec);
+
+                BenchUtil.deleteTree(downloadDir);
+                Files.deleteIfExists(Util.getStateFile("bench-endtoend"));
+            }
+        }
+
+        if (bestMsgsPerSec < minMsgsPerSec)
+            failures.add(String.format("best %.1f msgs/s is below the threshold %.1f", bestMsgsPerSec, minMsgsPerSec));
+        if (bestMBPerSec < minMBPerSec)
+            failures.add(String.format("best %.2f MB/s is below the threshold %.2f", bestMBPerSec, minMBPerSec));
+        if (!failures.isEmpty()) {
+            failures.forEach(failure -> System.out.println("FAILED: " + failure));
+            System.exit(1);
+        }
+    }
+
+}
@@ -0,0 +1,69 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: FetchMailAtt
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2015 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+package fetchmailatt;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+
+/**
+ * Compare the platform thread and the virtual thread execution of many small downloads.
+ * Usage: ExecutorBench [tasks, default 5000] [latency ms, default 20] [file KB, default 16] [concurrency levels, default 16 128 512]
+ *
+ * Each task waits the latency to stand in for the network round trips, then writes the file with AttachmentWriter.
+ */
+public class ExecutorBench {
+
+    public static void main(String[] args) throws Exception {
+        int         tasks = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        long        latencyMS = args.length > 1 ? Long.parseLong(args[1]) : 20;
+        int         fileKB = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+        int[]       levels = args.length > 3 ? Arrays.stream(args, 3, args.length).mapToInt(Integer::parseInt).toArray() : new int[] {16, 128, 512};
+        byte[]      data = new byte[fileKB * 1024];
+        new Random(1).nextBytes(data);
+
+        System.out.println("Virtual threads supported: " + VirtualThreads.isSupported());
+        BenchUtil.printHeader("conc");
+        for (int concurrency : levels) {
+            run("platform", false, concurrency, tasks, latencyMS, data);
+            if (VirtualThreads.isSupported())
+                run("virtual", true, concurrency, tasks, latencyMS, data);
+        }
+    }
+
+    private static void run(String label, boolean virtual, int concurrency, int tasks, long latencyMS, byte[] data) throws Exception {
+        Path                dir = Files.createTempDirectory("fetchmailatt-bench");
+        AttachmentWriter    writer = new AttachmentWriter(64 * 1024, Math.min(concurrency, 64));
+        long                startNS = System.nanoTime();
+        KeyedScheduler      scheduler = new KeyedScheduler("bench", concurrency, concurrency * 100, virtual);
+
+        for (int i = 0; i < tasks; i++) {
+            Path    file = dir.resolve("f" + i + ".bin");
+            scheduler.submit(file.getFileName().toString(), () -> {
+                    Thread.sleep(latencyMS);
+                    return writer.write(new ByteArrayInputStream(data), file);
+                });
+        }
+        scheduler.awaitIdle();
+        scheduler.shutdown(1000);
+
+        double              sec = (System.nanoTime() - startNS) / 1e9;
+        BenchUtil.printRow(label, concurrency, sec, tasks, writer.totalBytes());
+        BenchUtil.deleteTree(dir);
+    }
+
+}
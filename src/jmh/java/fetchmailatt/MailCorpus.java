@@ -0,0 +1,118 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: FetchMailAtt
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2015 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+package fetchmailatt;
+
+import java.io.*;
+import java.util.*;
+import javax.activation.DataHandler;
+import javax.mail.*;
+import javax.mail.internet.*;
+import javax.mail.util.ByteArrayDataSource;
+
+
+/**
+ * Synthetic messages for the benchmarks, parsed from their MIME bytes as they would be from a mail store.
+ * The shape is set by the number of attachments, the nesting depth of the multiparts holding them,
+ * and the size of the extra headers.
+ */
+public class MailCorpus {
+
+    public static final Session SESSION = Session.getInstance(new Properties());
+
+    private static final String[]   TYPES = { "pdf", "csv", "jpg", "png", "docx", "zip" };
+
+    // Parsed messages have no received date, which comes from the mail store; use the sent date.
+    private static class CorpusMessage extends MimeMessage {
+        CorpusMessage(byte[] bytes) throws MessagingException {
+            super(SESSION, new ByteArrayInputStream(bytes));
+        }
+
+        @Override
+        public Date getReceivedDate() throws MessagingException {
+            return getSentDate();
+        }
+    }
+
+    /** The MIME bytes of a message with attachmentCount attachments nested depth levels deep, and about headerBytes of extra headers. */
+    public static byte[] build(int seq, int attachmentCount, int depth, int headerBytes) throws Exception {
+        Random          random = new Random(seq);
+        MimeMessage     msg = new MimeMessage(SESSION);
+        msg.setFrom(new InternetAddress("sender" + (seq % 17) + "@example" + (seq % 5) + ".com", "Sender Name " + (seq % 17)));
+        msg.setRecipients(Message.RecipientType.TO, "reports@example.com, team" + (seq % 3) + "@example.com");
+        msg.setRecipients(Message.RecipientType.CC, "archive@example.com");
+        msg.setSubject("Monthly report " + seq + ": invoices, receipts / statements <Q" + (seq % 4 + 1) + ">");
+        msg.setSentDate(new Date(1420070400000L + seq * 3600000L));
+        for (int i = 0; headerBytes > 0; i++) {
+            String  value = "hop" + i + ".relay.example.net by mx.example.com with ESMTPS id " + Long.toHexString(random.nextLong());
+            msg.addHeader("Received", value);
+            headerBytes -= value.length() + 10;
+        }
+
+        MimeMultipart   top = new MimeMultipart("mixed");
+        MimeBodyPart    text = new MimeBodyPart();
+        text.setText("Please find the attached files.\n" + seq);
+        top.addBodyPart(text);
+
+        MimeMultipart   holder = top;
+        for (int d = 1; d < depth; d++) {    // nest the attachments inside forwarded multiparts.
+            MimeMultipart   inner = new MimeMultipart("mixed");
+            MimeBodyPart    wrapper = new MimeBodyPart();
+            wrapper.setContent(inner);
+            holder.addBodyPart(wrapper);
+            MimeBodyPart    note = new MimeBodyPart();
+            note.setText("Forwarded level " + d);
+            inner.addBodyPart(note);
+            holder = inner;
+        }
+        for (int i = 0; i < attachmentCount; i++) {
+            byte[]          data = new byte[256 + random.nextInt(2048)];
+            random.nextBytes(data);
+            MimeBodyPart    att = new MimeBodyPart();
+            String          type = TYPES[(seq + i) % TYPES.length];
+            att.setDataHandler(new DataHandler(new ByteArrayDataSource(data, "application/octet-stream")));
+            att.setFileName("Statement " + seq + "-" + i + "." + type);
+            att.setDisposition(i % 4 == 3 ? Part.INLINE : Part.ATTACHMENT);
+            holder.addBodyPart(att);
+        }
+        msg.setContent(top);
+        msg.saveChanges();
+
+        ByteArrayOutputStream   out = new ByteArrayOutputStream();
+        msg.writeTo(out);
+        return out.toByteArray();
+    }
+
+    public static Message parse(byte[] bytes) throws MessagingException {
+        return new CorpusMessage(bytes);
+    }
+
+    /** Parsed messages of the shape, count of them. */
+    public static Message[] messages(int count, int attachmentCount, int depth, int headerBytes) throws Exception {
+        Message[]   messages = new Message[count];
+        for (int i = 0; i < count; i++)
+            messages[i] = parse(build(i, attachmentCount, depth, headerBytes));
+        return messages;
+    }
+
+    /** The attachment parts of the messages, with their content parsed. */
+    public static List<BodyPart> parts(Message[] messages, Cfg cfg) throws Exception {
+        List<BodyPart>  parts = new ArrayList<>();
+        for (Message msg : messages)
+            parts.addAll(MailService.getAttachmentParts(msg, cfg, new LinkedHashMap<String, BodyPart>()).values());
+        return parts;
+    }
+
+}
@@ -0,0 +1,87 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: FetchMailAtt
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2015 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+package fetchmailatt;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import javax.mail.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+
+/** The mail and file matchers built from the match.* config, applied to a corpus of messages. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MatcherBench {
+
+    private static final int MESSAGES = 100;
+
+    @Param({"none", "subject", "all"})
+    public String                   matchers;
+
+    private Cfg                     cfg;
+    private Message[]               messages;
+    private List<BodyPart>          parts;
+    private Predicate<MessageView>  mailMatchers;
+    private Predicate<BodyPart>     fileMatchers;
+
+    @Setup
+    public void setup() throws Exception {
+        Map<String, String> config = new HashMap<>();
+        if (!matchers.equals("none"))
+            config.put("match.subject.contains", "Report");
+        if (matchers.equals("all")) {
+            config.put("match.from.contains", "sender name");
+            config.put("match.address.contains", "example");
+            config.put("match.to.contains", "reports@");
+            config.put("match.cc.contains", "archive");
+            config.put("match.file.name.contains", "statement,invoice,receipt");
+            config.put("match.file.type.is", "pdf,csv,jpg,png");
+            config.put("match.file.size.less.than", "10m");
+            config.put("match.file.size.greater.than", "100");
+        }
+        cfg = new Cfg(config);
+        messages = MailCorpus.messages(MESSAGES, 4, 1, 1024);
+        parts = MailCorpus.parts(messages, new Cfg(Util.asMap("download.inline", "yes")));
+        mailMatchers = MailService.buildMailMatchers(cfg);
+        fileMatchers = MailService.buildFileMatchers(cfg);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void mailMatchers(Blackhole bh) {
+        for (Message msg : messages)
+            bh.consume(mailMatchers.test(new MessageView(msg)));     // a fresh view per message, as in the match stage.
+    }
+
+    @Benchmark
+    public void fileMatchers(Blackhole bh) {
+        for (BodyPart bp : parts)
+            bh.consume(fileMatchers.test(bp));
+    }
+
+    @Benchmark
+    public void buildMatchers(Blackhole bh) {
+        bh.consume(MailService.buildMailMatchers(cfg));
+        bh.consume(MailService.buildFileMatchers(cfg));
+    }
+
+}
@@ -0,0 +1,79 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: FetchMailAtt
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2015 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+package fetchmailatt;
+
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import javax.mail.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+
+/**
+ * The header work of a message through the stages: the mail matchers, the groupby path and the log line.
+ * perMessage shares one MessageView among them, as the stages do; perAccess makes a view for each of them,
+ * re-parsing the headers as the matchers and pathers did on the Message.  Run with -prof gc and compare
+ * gc.alloc.rate.norm, the bytes allocated per message.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageViewBench {
+
+    private static final int MESSAGES = 100;
+
+    @Param({"perMessage", "perAccess"})
+    public String                               view;
+
+    private Message[]                           messages;
+    private Predicate<MessageView>              mailMatchers;
+    private List<Function<MessageView, Path>>   pathers;
+    private Path                                basePath = Paths.get("/opt/download");
+
+    @Setup
+    public void setup() throws Exception {
+        Map<String, String> config = new HashMap<>();
+        config.put("match.subject.contains", "Report");
+        config.put("match.from.contains", "sender name");
+        config.put("match.address.contains", "example");
+        config.put("match.to.contains", "reports@");
+        config.put("download.groupby", "address");
+        config.put("download.groupby.2nd", "from");
+        config.put("download.groupby.3rd", "subject");
+        messages = MailCorpus.messages(MESSAGES, 1, 1, 1024);
+        mailMatchers = MailService.buildMailMatchers(new Cfg(config));
+        pathers = MailService.buildGroupbyPathers(new Cfg(config));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void stages(Blackhole bh) {
+        boolean     shared = view.equals("perMessage");
+        for (Message msg : messages) {
+            MessageView v = new MessageView(msg);
+            bh.consume(v.fromName() + " " + v.fromAddress());
+            bh.consume(mailMatchers.test(shared ? v : new MessageView(msg)));
+            bh.consume(MailService.resolveDownloadPath(pathers, basePath, shared ? v : new MessageView(msg)));
+        }
+    }
+
+}
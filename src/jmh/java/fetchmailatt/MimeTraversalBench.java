@@ -0,0 +1,67 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: FetchMailAtt
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2015 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+package fetchmailatt;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import javax.mail.*;
+import org.openjdk.jmh.annotations.*;
+
+
+/**
+ * getAttachmentParts over messages of different shapes.  Parse includes parsing the MIME bytes into a new message,
+ * as each fetched message is traversed once; cached traverses a message whose content has already been parsed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MimeTraversalBench {
+
+    @Param({"1", "5", "20"})
+    public int          attachments;
+
+    @Param({"1", "3"})
+    public int          depth;
+
+    @Param({"512", "16384"})
+    public int          headerBytes;
+
+    private byte[]      mimeBytes;
+    private Message     parsed;
+    private Cfg         cfg;
+
+    @Setup
+    public void setup() throws Exception {
+        mimeBytes = MailCorpus.build(1, attachments, depth, headerBytes);
+        parsed = MailCorpus.parse(mimeBytes);
+        cfg = new Cfg(new HashMap<String, String>());
+        MailService.getAttachmentParts(parsed, cfg, new LinkedHashMap<String, BodyPart>());
+    }
+
+    @Benchmark
+    public Map<String, BodyPart> parse() throws Exception {
+        return MailService.getAttachmentParts(MailCorpus.parse(mimeBytes), cfg, new LinkedHashMap<String, BodyPart>());
+    }
+
+    @Benchmark
+    public Map<String, BodyPart> cached() throws Exception {
+        return MailService.getAttachmentParts(parsed, cfg, new LinkedHashMap<String, BodyPart>());
+    }
+
+}
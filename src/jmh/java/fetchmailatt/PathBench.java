@@ -0,0 +1,65 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: FetchMailAtt
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2015 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+package fetchmailatt;
+
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import javax.mail.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+
+/** resolveDownloadPath with each download.groupby mode, and with the three levels combined. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PathBench {
+
+    private static final int MESSAGES = 100;
+
+    @Param({"none", "date", "month", "year", "from", "address", "subject", "address/year/month"})
+    public String                           groupby;
+
+    private Message[]                       messages;
+    private List<Function<MessageView, Path>> pathers;
+    private Path                            basePath = Paths.get("/opt/download");
+
+    @Setup
+    public void setup() throws Exception {
+        String[]            levels = groupby.split("/");
+        Map<String, String> config = new HashMap<>();
+        config.put("download.groupby", levels[0]);
+        if (levels.length > 1)
+            config.put("download.groupby.2nd", levels[1]);
+        if (levels.length > 2)
+            config.put("download.groupby.3rd", levels[2]);
+        messages = MailCorpus.messages(MESSAGES, 1, 1, 512);
+        pathers = MailService.buildGroupbyPathers(new Cfg(config));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void resolveDownloadPath(Blackhole bh) {
+        for (Message msg : messages)
+            bh.consume(MailService.resolveDownloadPath(pathers, basePath, new MessageView(msg)));
+    }
+
+}
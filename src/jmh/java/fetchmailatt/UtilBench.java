@@ -0,0 +1,63 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: FetchMailAtt
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2015 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+package fetchmailatt;
+
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+
+/** The string helpers on the per message and per file paths. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UtilBench {
+
+    private String  filename = "Re: Fwd: Statement <March>|2015 \"final\"?*.pdf";
+    private String  key = "monthly-report-2015-03.pdf";
+    private Date    date = new Date(1426000000000L);
+
+    @Benchmark
+    public String cleanFilename() {
+        return Util.cleanFilename(filename);
+    }
+
+    @Benchmark
+    public int md5int() {
+        return Util.md5int(key);
+    }
+
+    @Benchmark
+    public String formatDateCached() {
+        return Util.dateYYYYMMdd().format(date);
+    }
+
+    @Benchmark
+    public String formatTimeCached() {
+        return Util.timeMMddHHmm().format(date);
+    }
+
+    // Baseline of formatTimeCached, creating the format each time.
+    @Benchmark
+    public String formatTimeNew() {
+        return new SimpleDateFormat("MM/dd/yyyy hh:mma").format(date);
+    }
+
+}
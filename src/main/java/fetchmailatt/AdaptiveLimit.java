@@ -0,0 +1,143 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: FetchMailAtt
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2015 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+package fetchmailatt;
+
+import java.net.SocketTimeoutException;
+import java.util.logging.*;
+import java.util.regex.*;
+import javax.mail.*;
+
+
+/**
+ * AIMD limit of the downloads in flight.  The limit starts low and doubles each round while the downloads succeed
+ * (slow start), then grows by one per round of limit downloads.  It is halved when the server throttles, i.e. a NO or
+ * BYE response, a [THROTTLED]-like message, a closed connection, or a timeout, and cut by a tenth when the time per byte
+ * of the downloads rises above latencyTolerance times its baseline, as then more downloads in flight only queue up.
+ * A decrease applies once per round: the downloads started before it report under the old limit and don't decrease it again.
+ */
+public class AdaptiveLimit {
+    private static final Logger log = Logger.getLogger(AdaptiveLimit.class.getName());
+
+    private static final double     THROTTLE_BACKOFF = 0.5;
+    private static final double     LATENCY_BACKOFF = 0.9;
+    private static final double     BASELINE_DRIFT = 0.01;          // let the baseline rise slowly, following the server's load.
+    private static final long       MIN_SAMPLE_BYTES = 64 * 1024;   // the small downloads are timed as if of this size, as the round trip dominates.
+    private static final Pattern    THROTTLE_TEXT = Pattern.compile("throttl|\\[UNAVAILABLE\\]|\\[LIMIT\\]|\\[OVERQUOTA\\]|too many|try again later|rate limit|server unavailable",
+                                                                    Pattern.CASE_INSENSITIVE);
+
+    private final String            name;
+    private final int               minLimit;
+    private final int               maxLimit;
+    private final double            latencyTolerance;
+    private final RunStats          stats;
+    private double                  limit;
+    private int                     inFlight;
+    private long                    epoch;              // incremented on each decrease.
+    private boolean                 slowStart = true;
+    private double                  baselineNSPerByte;
+
+    public AdaptiveLimit(String name, int minLimit, int maxLimit, int initial, double latencyTolerance, RunStats stats) {
+        this.name = name;
+        this.minLimit = Math.max(minLimit, 1);
+        this.maxLimit = Math.max(maxLimit, this.minLimit);
+        this.limit = Math.min(Math.max(initial, this.minLimit), this.maxLimit);
+        this.latencyTolerance = latencyTolerance;
+        this.stats = stats;
+    }
+
+    public synchronized int limit() {
+        return (int)limit;
+    }
+
+    public synchronized int inFlight() {
+        return inFlight;
+    }
+
+    /**
+     * Count a download started.  The caller keeps the downloads in flight under limit(), e.g. by a group limit
+     * of the scheduler running them.  Return the token to pass to succeeded() or failed().
+     */
+    public synchronized long start() {
+        inFlight++;
+        return epoch;
+    }
+
+    public synchronized void succeeded(long token, long bytes, long elapsedNS) {
+        release();
+        double  nsPerByte = (double)elapsedNS / Math.max(bytes, MIN_SAMPLE_BYTES);
+        if (baselineNSPerByte == 0 || nsPerByte < baselineNSPerByte)
+            baselineNSPerByte = nsPerByte;
+        else
+            baselineNSPerByte += (nsPerByte - baselineNSPerByte) * BASELINE_DRIFT;
+
+        if (nsPerByte > baselineNSPerByte * latencyTolerance) {
+            if (decrease(token, LATENCY_BACKOFF, String.format("latency %.1fx the baseline", nsPerByte / baselineNSPerByte)))
+                stats.inc("concurrency.decrease.latency");
+        } else {
+            increase();
+        }
+    }
+
+    public synchronized void failed(long token, Throwable e) {
+        release();
+        if (isThrottling(e) && decrease(token, THROTTLE_BACKOFF, "throttled: " + e))
+            stats.inc("concurrency.decrease.throttled");
+    }
+
+    private void release() {
+        inFlight--;
+    }
+
+    private void increase() {
+        int     old = (int)limit;
+        limit = Math.min(limit + (slowStart ? 1 : 1 / limit), maxLimit);
+        if ((int)limit != old) {
+            log.info(name + " download concurrency " + old + " -> " + (int)limit + (slowStart ? ", slow start" : ""));
+            stats.inc("concurrency.increase");
+        }
+    }
+
+    private boolean decrease(long token, double factor, String reason) {
+        if (token != epoch)
+            return false;       // started before the last decrease, which has accounted for it.
+        int     old = (int)limit;
+        epoch++;
+        slowStart = false;
+        limit = Math.max(limit * factor, minLimit);
+        log.info(name + " download concurrency " + old + " -> " + (int)limit + ", " + reason);
+        return true;
+    }
+
+    /** Whether the error tells the client to slow down, rather than being a problem of the download itself. */
+    public static boolean isThrottling(Throwable e) {
+        if (MailService.isConnectionLost(e))
+            return true;
+        Throwable   t = e;
+        for (int depth = 0; t != null && depth < 10; depth++, t = t.getCause() != null ? t.getCause() : nextException(t)) {
+            if (t instanceof SocketTimeoutException || t instanceof com.sun.mail.iap.CommandFailedException)
+                return true;
+            if (t.getMessage() != null && THROTTLE_TEXT.matcher(t.getMessage()).find())
+                return true;
+        }
+        return false;
+    }
+
+    // MessagingException chains its causes through getNextException.
+    private static Throwable nextException(Throwable t) {
+        return t instanceof MessagingException ? ((MessagingException)t).getNextException() : null;
+    }
+
+}
@@ -0,0 +1,106 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: FetchMailAtt
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2015 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+package fetchmailatt;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.logging.*;
+
+
+/**
+ * Content addressed store of the downloaded files.  A file is kept once under its SHA-256 hash as store/ab/cdef...,
+ * and the download paths are hard links to it, or symbolic links where hard links are not supported.
+ */
+public class AttachmentStore {
+    private static final Logger log = Logger.getLogger(AttachmentStore.class.getName());
+
+    private static final int    LOCK_STRIPES = 64;
+
+    private final Path          storeDir;
+    private final RunStats      stats;
+    private final Object[]      locks = new Object[LOCK_STRIPES];
+
+    public AttachmentStore(Path storeDir, RunStats stats) {
+        this.storeDir = storeDir;
+        this.stats = stats;
+        for (int i = 0; i < locks.length; i++)
+            locks[i] = new Object();
+    }
+
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch(Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** Keep the downloaded tmpFile of the hash in the store, unless the same content is already there, and link the file to it. */
+    public void put(Path tmpFile, byte[] hash, Path file, long msgTime) throws IOException {
+        String  hex = toHex(hash);
+        Path    stored = storeDir.resolve(hex.substring(0, 2)).resolve(hex.substring(2));
+
+        synchronized(locks[(hash[0] & 0xFF) % LOCK_STRIPES]) {
+            long    size = Files.size(tmpFile);
+            if (Files.exists(stored)) {
+                Files.delete(tmpFile);
+                stats.inc("dedup.files");
+                stats.add("dedup.bytes", size);
+            } else {
+                Files.createDirectories(stored.getParent());
+                Files.move(tmpFile, stored, StandardCopyOption.REPLACE_EXISTING);
+                Files.setLastModifiedTime(stored, FileTime.fromMillis(msgTime));
+                stats.inc("store.files");
+                stats.add("store.bytes", size);
+            }
+
+            // The links share the stored file's time, the time of its first message.  The message time of each
+            // download path is kept in the download index instead.
+            Files.deleteIfExists(file);
+            if (!link(stored, file))
+                Files.setLastModifiedTime(file, FileTime.fromMillis(msgTime));
+        }
+    }
+
+    // Return false if the file is a copy rather than a link.
+    private static boolean link(Path stored, Path file) throws IOException {
+        try {
+            Files.createLink(file, stored);
+            return true;
+        } catch(UnsupportedOperationException | IOException e) {
+            log.info("Hard link failed, " + e + ".  Use symbolic link for " + file);
+        }
+        try {
+            Files.createSymbolicLink(file, stored.toAbsolutePath());
+            return true;
+        } catch(UnsupportedOperationException | IOException e) {
+            log.info("Symbolic link failed, " + e + ".  Copy to " + file);
+        }
+        Files.copy(stored, file, StandardCopyOption.REPLACE_EXISTING);
+        return false;
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder   sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes)
+            sb.append(String.format("%02x", b & 0xFF));
+        return sb.toString();
+    }
+
+}
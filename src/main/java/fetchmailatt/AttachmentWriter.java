@@ -0,0 +1,137 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: FetchMailAtt
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2015 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+package fetchmailatt;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+
+/**
+ * Write attachment streams to files through a bounded pool of direct buffers.
+ * Each pooled buffer comes with a heap array that the stream is read into, as an InputStream only reads
+ * into arrays; the array is copied into the buffer, which is written to the FileChannel a full buffer at a time.
+ * Neither is allocated per file.  When all pooled buffers are in use, a small heap buffer is used for the file
+ * so that a large number of concurrent downloads don't wait on the pool.
+ */
+public class AttachmentWriter {
+
+    private static final int                    OVERFLOW_BUFFER_SIZE = 64 * 1024;
+    private static final int                    READ_SIZE = 64 * 1024;
+
+    private static class Slot {
+        final ByteBuffer    buf;
+        final byte[]        array;          // the stream is read into the array, then copied into buf.
+
+        Slot(ByteBuffer buf, byte[] array) {
+            this.buf = buf;
+            this.array = array;
+        }
+    }
+
+    private final int                           bufferSize;
+    private final int                           poolSize;
+    private final AtomicInteger                 allocated = new AtomicInteger();
+    private final BlockingQueue<Slot>           buffers = new LinkedBlockingQueue<>();
+    private final ConcurrentMap<String, long[]> workerRates = new ConcurrentSkipListMap<>();   // worker name -> [bytes, nanos]
+
+    public AttachmentWriter(int bufferSize, int poolSize) {
+        this.bufferSize = Math.max(bufferSize, 4096);
+        this.poolSize = Math.max(poolSize, 1);
+    }
+
+    /** Copy the input stream to the file, replacing any existing file.  Return the number of bytes written. */
+    public long write(InputStream in, Path file) throws IOException, InterruptedException {
+        return write(in, file, null);
+    }
+
+    /** Copy the input stream to the file, and update the digest with the bytes written if it's not null. */
+    public long write(InputStream in, Path file, MessageDigest digest) throws IOException, InterruptedException {
+        long        startNS = System.nanoTime();
+        long        total = 0;
+        Slot        slot = acquire();
+        ByteBuffer  buf = slot.buf;
+        byte[]      array = slot.array;
+        try (FileChannel dst = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            int     n;
+            while ((n = in.read(array)) >= 0) {
+                if (digest != null)
+                    digest.update(array, 0, n);
+                for (int off = 0; off < n; ) {
+                    int len = Math.min(n - off, buf.remaining());
+                    buf.put(array, off, len);
+                    off += len;
+                    if (!buf.hasRemaining())
+                        total += drain(buf, dst);
+                }
+            }
+            total += drain(buf, dst);
+        } finally {
+            buf.clear();
+            if (buf.isDirect())
+                buffers.add(slot);
+        }
+        record(Thread.currentThread().getName(), total, System.nanoTime() - startNS);
+        return total;
+    }
+
+    private static long drain(ByteBuffer buf, FileChannel dst) throws IOException {
+        long    written = 0;
+        buf.flip();
+        while (buf.hasRemaining())
+            written += dst.write(buf);
+        buf.clear();
+        return written;
+    }
+
+    private Slot acquire() {
+        Slot    slot = buffers.poll();
+        if (slot != null)
+            return slot;
+        if (allocated.incrementAndGet() <= poolSize)
+            return new Slot(ByteBuffer.allocateDirect(bufferSize), new byte[Math.min(bufferSize, READ_SIZE)]);
+        allocated.decrementAndGet();
+        int     size = Math.min(bufferSize, OVERFLOW_BUFFER_SIZE);
+        return new Slot(ByteBuffer.allocate(size), new byte[Math.min(size, READ_SIZE)]);     // pool exhausted; not pooled.
+    }
+
+    private void record(String worker, long bytes, long nanos) {
+        long[]  rate = workerRates.computeIfAbsent(worker, k -> new long[2]);
+        synchronized(rate) {
+            rate[0] += bytes;
+            rate[1] += nanos;
+        }
+    }
+
+    public long totalBytes() {
+        return workerRates.values().stream().mapToLong(rate -> rate[0]).sum();
+    }
+
+    /** Print the download rate of each worker. */
+    public void printRates() {
+        workerRates.forEach((worker, rate) -> {
+                double  sec = rate[1] / 1e9;
+                System.out.println("  " + worker + ": " + Util.formatByteSize(rate[0], 1) + " in " + String.format("%.2f", sec) + "s, " +
+                                   Util.formatByteSize((long)(rate[0] / Math.max(sec, 0.001)), 1) + "/s");
+            });
+    }
+
+}
@@ -0,0 +1,132 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: FetchMailAtt
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2015 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+package fetchmailatt;
+
+import java.util.*;
+import java.util.logging.*;
+import java.util.concurrent.*;
+import javax.mail.*;
+
+
+/**
+ * Pool of mail server connections, each with its own Store and opened Folder.
+ * The mail provider serializes the protocol access on a folder; separate connections let the downloads run in parallel.
+ * A connection lost in a call is closed, and opened again when next taken; once reopening has failed, the pool fails fast.
+ */
+public class ConnectionPool implements AutoCloseable {
+    private static final Logger log = Logger.getLogger(ConnectionPool.class.getName());
+
+    public static interface FolderCall<T> {
+        public T call(Folder folder) throws Exception;
+    }
+
+    private final Cfg                       cfg;
+    private final String                    folderName;
+    private final RunStats                  stats;
+    private final List<Folder>              folders = new ArrayList<>();
+    private final BlockingQueue<Folder>     idleFolders = new LinkedBlockingQueue<>();
+    private volatile Exception              reopenFailure;
+
+    /** Open size number of connections to the folder. */
+    public ConnectionPool(Cfg cfg, String folderName, int size, RunStats stats) throws Exception {
+        this.cfg = cfg;
+        this.folderName = folderName;
+        this.stats = stats;
+        try {
+            for (int i = 0; i < size; i++) {
+                Folder  folder = MailService.openMailbox(cfg, folderName);
+                folders.add(folder);
+                idleFolders.add(folder);
+            }
+        } catch(Exception e) {
+            close();
+            throw e;
+        }
+    }
+
+    public int size() {
+        synchronized(folders) {
+            return folders.size();
+        }
+    }
+
+    /** Run the call on whichever connection is free, waiting for one if all are busy. */
+    public <T> T call(FolderCall<T> fn) throws Exception {
+        Folder  folder = idleFolders.take();
+        try {
+            if (!folder.isOpen())
+                folder = reopen(folder);
+            return fn.call(folder);
+        } catch(Exception e) {
+            if (MailService.isConnectionLost(e))
+                closeStore(folder);
+            throw e;
+        } finally {
+            idleFolders.add(folder);
+        }
+    }
+
+    /** Send a NOOP on the idle connections to keep them from timing out. */
+    public void keepAlive() {
+        List<Folder>    idle = new ArrayList<>();
+        idleFolders.drainTo(idle);
+        for (Folder folder : idle) {
+            try {
+                folder.getMessageCount();
+            } catch(Exception e) {
+                log.info("Keepalive failed: " + e);
+            }
+            idleFolders.add(folder);
+        }
+    }
+
+    private Folder reopen(Folder dead) throws Exception {
+        if (reopenFailure != null)
+            throw reopenFailure;
+        closeStore(dead);
+        try {
+            Folder  folder = MailService.reopenMailbox(cfg, folderName);
+            synchronized(folders) {
+                folders.set(folders.indexOf(dead), folder);
+            }
+            stats.inc("connection.reconnects");
+            log.info("Reopened a dropped connection to " + folderName);
+            return folder;
+        } catch(Exception e) {
+            reopenFailure = e;
+            throw e;
+        }
+    }
+
+    public void close() {
+        synchronized(folders) {
+            folders.forEach(ConnectionPool::closeStore);
+            folders.clear();
+        }
+        idleFolders.clear();
+    }
+
+    private static void closeStore(Folder folder) {
+        try {
+            if (folder.isOpen())
+                folder.close(false);
+            folder.getStore().close();
+        } catch(Exception e) {
+            log.info("Failed to close connection: " + e);
+        }
+    }
+
+}
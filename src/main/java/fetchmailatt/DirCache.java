@@ -0,0 +1,105 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: FetchMailAtt
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2015 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+
+package fetchmailatt;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+
+
+/**
+ * The directories known to exist under the download directory, to save the metadata round trips of checking and
+ * creating the groupby directory of every message.  It's warmed by one walk of the tree at the start; a missing
+ * directory is created once, with the other threads asking for it waiting on the creation.  Creating a directory
+ * that another process or account has just created is fine.  A directory removed during the run is not noticed.
+ */
+public class DirCache {
+    private static final Logger log = Logger.getLogger(DirCache.class.getName());
+
+    private final ConcurrentMap<Path, Boolean>  dirs = new ConcurrentHashMap<>();
+    private final RunStats                      stats;
+
+    public DirCache(RunStats stats) {
+        this.stats = stats;
+    }
+
+    /**
+     * Add the existing directories under baseDir, down to depth levels, skipping the subtree of skipDir.
+     * Only the directories above depth are listed, so the files in the deepest directories are not touched.
+     * Return the number added.
+     */
+    public int warm(Path baseDir, int depth, Path skipDir) throws IOException {
+        if (!Files.isDirectory(baseDir))
+            return 0;
+        Path    skip = key(skipDir);
+        int     before = dirs.size();
+        Files.walkFileTree(baseDir, EnumSet.noneOf(FileVisitOption.class), depth, new SimpleFileVisitor<Path>() {
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    if (key(dir).equals(skip))
+                        return FileVisitResult.SKIP_SUBTREE;
+                    dirs.put(key(dir), Boolean.TRUE);
+                    return FileVisitResult.CONTINUE;
+                }
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (attrs.isDirectory() && !key(file).equals(skip))     // the directories at depth are visited as files.
+                        dirs.put(key(file), Boolean.TRUE);
+                    return FileVisitResult.CONTINUE;
+                }
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    log.info("Skip unreadable " + file + ": " + e);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        int     count = dirs.size() - before;
+        log.info("Found " + count + " directories in " + baseDir);
+        return count;
+    }
+
+    /** Make sure the directory exists, creating it and its parents if not. */
+    public void ensure(Path dir) throws IOException {
+        Path    key = key(dir);
+        if (dirs.containsKey(key)) {
+            stats.inc("dirs.cached");
+            return;
+        }
+        try {
+            dirs.computeIfAbsent(key, k -> {
+                    try {
+                        Files.createDirectories(k);
+                        stats.inc("dirs.created");
+                        return Boolean.TRUE;
+                    } catch(IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+        } catch(UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    public int size() {
+        return dirs.size();
+    }
+
+    private static Path key(Path dir) {
+        return dir.toAbsolutePath().normalize();
+    }
+
+}
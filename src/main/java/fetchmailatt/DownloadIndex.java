@@ -0,0 +1,195 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: FetchMailAtt
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2015 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+package fetchmailatt;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.logging.*;
+
+
+/**
+ * Index of the downloaded files, to answer whether a file has been downloaded without touching the file system.
+ * Each download appends a line of "msgTime path" to the index file, path being relative to the download directory.
+ * The paths are kept in memory as 64-bit hashes mapping to the message time.  The index is rebuilt from
+ * the download directory tree when the index file is missing or corrupted, leaving out the skipDir subtree, e.g. the dedup store.
+ */
+public class DownloadIndex implements Closeable {
+    private static final Logger log = Logger.getLogger(DownloadIndex.class.getName());
+
+    private static final String HEADER = "# fetchmailatt download index: ";
+
+    private final Path          indexFile;
+    private final Path          downloadDir;
+    private final Path          skipDir;
+    private long[]              keys = new long[1024];      // open addressing hash table; 0 key for empty slot.
+    private long[]              times = new long[1024];
+    private int                 count;
+    private Writer              writer;
+
+    public DownloadIndex(Path indexFile, Path downloadDir) {
+        this(indexFile, downloadDir, null);
+    }
+
+    public DownloadIndex(Path indexFile, Path downloadDir, Path skipDir) {
+        this.indexFile = indexFile;
+        this.downloadDir = downloadDir.toAbsolutePath().normalize();
+        this.skipDir = skipDir != null ? skipDir.toAbsolutePath().normalize() : null;
+    }
+
+    /** Load the index file, or rebuild it from the download directory when it's missing or corrupted.  Return true if loaded. */
+    public synchronized boolean open() throws IOException {
+        boolean loaded = load();
+        if (!loaded) {
+            clear();
+            rebuild();
+        }
+        writer = Files.newBufferedWriter(indexFile, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        return loaded;
+    }
+
+    /** Has the file been downloaded for a message of msgTime or later. */
+    public synchronized boolean contains(Path file, long msgTime) {
+        int     slot = find(hash(relative(file)));
+        return keys[slot] != 0 && msgTime <= times[slot];
+    }
+
+    /** The message time of the downloaded file, or -1 if it has not been downloaded. */
+    public synchronized long msgTime(Path file) {
+        int     slot = find(hash(relative(file)));
+        return keys[slot] != 0 ? times[slot] : -1;
+    }
+
+    public synchronized void add(Path file, long msgTime) throws IOException {
+        String  path = relative(file);
+        put(hash(path), msgTime);
+        writer.write(msgTime + " " + path + "\n");
+        writer.flush();
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    public synchronized void close() throws IOException {
+        if (writer != null)
+            writer.close();
+        writer = null;
+    }
+
+    private boolean load() throws IOException {
+        if (!Files.exists(indexFile))
+            return false;
+        try (BufferedReader r = Files.newBufferedReader(indexFile)) {
+            if (!(HEADER + downloadDir).equals(r.readLine()))
+                return false;       // missing header or index of another download directory.
+            String  line;
+            while ((line = r.readLine()) != null) {
+                int sep = line.indexOf(' ');
+                if (sep <= 0)
+                    return false;
+                put(hash(line.substring(sep + 1)), Long.parseLong(line.substring(0, sep)));
+            }
+            return true;
+        } catch(NumberFormatException | UncheckedIOException e) {
+            log.warning("Download index " + indexFile + " is corrupted.  " + e);
+            return false;
+        }
+    }
+
+    private void rebuild() throws IOException {
+        log.info("Rebuild download index " + indexFile + " from " + downloadDir);
+        try (Writer w = Files.newBufferedWriter(indexFile)) {
+            w.write(HEADER + downloadDir + "\n");
+            if (!Files.isDirectory(downloadDir))
+                return;
+            Files.walkFileTree(downloadDir, new SimpleFileVisitor<Path>() {
+                    public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                        return dir.equals(skipDir) ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+                    }
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                        if (!Files.isRegularFile(file) || isTempFile(file))     // the symbolic links of the dedup store count as files.
+                            return FileVisitResult.CONTINUE;
+                        String  path = relative(file);
+                        long    time = Files.getLastModifiedTime(file).toMillis();
+                        put(hash(path), time);
+                        w.write(time + " " + path + "\n");
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+        }
+    }
+
+    // The downloads in progress, and the partial files of the resumable downloads.
+    private static boolean isTempFile(Path file) {
+        String  name = file.getFileName().toString();
+        return name.endsWith(".tmp") || name.endsWith(".partial") || name.endsWith(".partial.properties");
+    }
+
+    private String relative(Path file) {
+        return downloadDir.relativize(file.toAbsolutePath().normalize()).toString();
+    }
+
+    private static long hash(String path) {
+        byte[]  md5 = Util.md5bytes(path);
+        long    h = 0;
+        for (int i = 0; i < 8; i++)
+            h = (h << 8) | (md5[i] & 0xFF);
+        return h == 0 ? 1 : h;
+    }
+
+    private void clear() {
+        keys = new long[1024];
+        times = new long[1024];
+        count = 0;
+    }
+
+    private int find(long key) {
+        int     mask = keys.length - 1;
+        int     slot = (int)(key ^ (key >>> 32)) & mask;
+        while (keys[slot] != 0 && keys[slot] != key)
+            slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    private void put(long key, long time) {
+        int     slot = find(key);
+        if (keys[slot] == 0) {
+            keys[slot] = key;
+            times[slot] = time;
+            if (++count * 2 > keys.length)
+                grow();
+        } else {
+            times[slot] = Math.max(times[slot], time);
+        }
+    }
+
+    private void grow() {
+        long[]  oldKeys = keys;
+        long[]  oldTimes = times;
+        keys = new long[oldKeys.length * 2];
+        times = new long[oldKeys.length * 2];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) {
+                int slot = find(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                times[slot] = oldTimes[i];
+            }
+        }
+    }
+
+}
@@ -0,0 +1,53 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: FetchMailAtt
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2015 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+package fetchmailatt;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.*;
+
+
+/**
+ * Directory tree of .eml files, as one folder named by the directory.  A message is received at its Date header,
+ * or else at the time of its file.
+ */
+public class EmlSource extends MailSource {
+
+    private final Path  root;
+
+    public EmlSource(Path root) {
+        this.root = root;
+    }
+
+    public List<String> folders() {
+        return Arrays.asList(root.getFileName().toString());
+    }
+
+    public List<Entry> list(String folder) throws IOException {
+        List<Path>  files;
+        try (Stream<Path> paths = Files.walk(root)) {
+            files = paths.filter(p -> Files.isRegularFile(p) && p.getFileName().toString().toLowerCase().endsWith(".eml"))
+                .sorted()
+                .collect(Collectors.toList());
+        }
+        List<Entry> entries = new ArrayList<>(files.size());
+        for (Path file : files)
+            entries.add(new FileEntry(entries.size() + 1, file, null));
+        return entries;
+    }
+
+}
@@ -0,0 +1,1097 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: FetchMailAtt
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2015 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+package fetchmailatt;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.logging.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.function.Function;
+import java.util.stream.*;
+import javax.mail.*;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimePart;
+import javax.mail.search.*;
+import javax.mail.event.*;
+import javax.management.ObjectName;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPStore;
+
+
+/**
+ * One run of fetching the attachments of a config.  The messages flow through the stages:
+ * enumerate (the calling thread) -> match -> structure -> download -> finalize.
+ * Match and structure are pipeline stages with bounded queues; download and finalize are keyed schedulers
+ * keeping the files of the same name in order.  The structure of the next messages is fetched while
+ * the attachments of the previous ones are downloading.
+ * In daemon mode the job stays connected after the initial run, waiting on IMAP IDLE (or polling)
+ * and passing the newly arrived messages through the same stages.
+ * Jobs of different accounts can share the download scheduler and a budget of mail server connections.
+ * When mail.folder lists several folders, they are scanned in parallel, each on its own connections,
+ * feeding the same stages.
+ * With a local mail.source, the folders of the archive are scanned instead, parsing the messages in parallel
+ * in place of the prefetch.
+ * When the server drops a connection, it is reopened with backoff and the messages in flight are looked up again
+ * by UID; the enumeration goes on from the message it was lost on.
+ * The finalized parts and the watermark of each folder, the UID up to which all the messages are done, go into
+ * the progress journal as they happen, so a run killed midway loses little.  On SIGTERM the enumeration stops and
+ * the downloads in flight are given a deadline to finish before the journal is synced.
+ */
+public class FetchJob {
+    private static final Logger log = Logger.getLogger(FetchJob.class.getName());
+
+    private static final int DEFAULT_PREFETCH_CHUNK = 500;
+    private static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+    private static final int MAX_POOLED_BUFFERS = 64;
+    private static final int DEFAULT_STAGE_QUEUE = 100;
+    private static final int DEFAULT_KEEPALIVE_SEC = 10 * 60;    // well within the 30 minutes server timeout of IDLE.
+    private static final int DEFAULT_POLL_SEC = 60;
+    private static final Message WAKEUP = new MimeMessage((Session)null);     // queued to wake up the daemon wait on shutdown.
+    private static final int DEFAULT_PARALLEL_FOLDERS = 4;
+    private static final long DEFAULT_RESUMABLE_MIN_SIZE = 10 * 1024 * 1024;
+    private static final int DEFAULT_RESUMABLE_CHUNK = 1024 * 1024;
+    private static final double DEFAULT_LATENCY_TOLERANCE = 2.0;
+    private static final long DEFAULT_JOURNAL_SYNC_MS = 1000;
+    private static final int DEFAULT_SHUTDOWN_TIMEOUT_SEC = 30;
+
+    // Per folder state of the scan.
+    private static class FolderScan {
+        final String        name;
+        final Object        reconnectLock = new Object();
+        volatile Folder     mailbox;
+        Exception           reconnectFailure;
+        ConnectionPool      connections;
+        int                 connectionPermits;
+        long                uidValidity;
+        Date                lastDate;
+        long                lastUid;
+        long                searchedUid;    // the highest UID in the folder when searched, matched or not.
+        Date                failedDate;     // of the earliest message with a failed download.
+        long                failedUid = Long.MAX_VALUE;
+        final TreeMap<Long, Date>   pending = new TreeMap<>();     // the enumerated messages not done yet, by UID.
+        long                watermark;
+
+        FolderScan(String name) {
+            this.name = name;
+        }
+
+        // The folder's name in the saved state.
+        String stateName() {
+            return mailbox != null ? mailbox.getFullName() : name;
+        }
+
+        synchronized void enumerated(long uid, Date date, boolean track) {
+            lastDate = Util.later(lastDate, date);
+            lastUid = Math.max(lastUid, uid);
+            if (track && uid > 0)
+                pending.put(uid, date);
+        }
+
+        // All the messages searched have been enumerated; the ones not matched by the search need no look again.
+        synchronized void searchDone() {
+            lastUid = Math.max(lastUid, searchedUid);
+        }
+
+        // Journal the watermark when the done message advances it.  A message not done yet, or failed, holds the
+        // watermark back, and its date is the date to resume from.
+        synchronized void done(MailItem item, ProgressJournal journal) {
+            if (pending.remove(item.uid) == null)
+                return;
+            long    mark = Math.min(pending.isEmpty() ? lastUid : pending.firstKey() - 1, failedUid - 1);
+            if (mark > watermark) {
+                Date    date = pending.isEmpty() ? lastDate : Collections.min(pending.values());
+                watermark = mark;
+                journal.watermark(stateName(), uidValidity, mark, failedDate != null && failedDate.before(date) ? failedDate : date);
+            }
+        }
+
+        synchronized void failed(MailItem item) {
+            if (failedDate == null || item.view.receivedDate().before(failedDate))
+                failedDate = item.view.receivedDate();
+            if (item.uid > 0)
+                failedUid = Math.min(failedUid, item.uid);
+        }
+    }
+
+    private static class MailItem {
+        final FolderScan    folder;
+        final int           msgNum;
+        final Message       msg;
+        final MessageView   view;
+        final long          msgTime;
+        final long          uid;
+        final AtomicInteger remaining = new AtomicInteger(1);     // the parts to finalize, and one for the structure stage.
+
+        MailItem(FolderScan folder, int msgNum, MessageView view, long uid) {
+            this.folder = folder;
+            this.msgNum = msgNum;
+            this.msg = view.message();
+            this.view = view;
+            this.msgTime = view.receivedDate().getTime();
+            this.uid = uid;
+        }
+    }
+
+    private final Cfg                               cfg;
+    private final Cfg                               state;
+    private final Properties                        stateProps;
+    private final String                            stateFilename;
+    private final boolean                           quiet;
+    private final boolean                           test;
+    private final boolean                           daemon;
+    private final Path                              downloadDir;
+    private final List<Function<MessageView, Path>> groupbyPathers;
+    private final Predicate<MessageView>            mailMatchers;
+    private final Predicate<BodyPart>               fileMatchers;
+    private final Optional<SearchTerm>              sizeTerm;
+    private final boolean                           resumable;
+    private final RunStats                          stats = new RunStats();
+    private final Pipeline                          pipeline = new Pipeline();
+    private final AtomicLong                        tmpSeq = new AtomicLong();
+    private KeyedScheduler                          workers;
+    private KeyedScheduler                          sharedWorkers;
+    private AttachmentWriter                        sharedWriter;
+    private Semaphore                               connectionBudget;
+    private Semaphore                               accountConnections;
+    private int                                     folderConnections;
+    private String                                  group = KeyedScheduler.DEFAULT_GROUP;
+    private long                                    durationMS;
+    private KeyedScheduler                          finalizers;
+    private AttachmentWriter                        writer;
+    private AttachmentStore                         store;
+    private DownloadIndex                           downloadIndex;
+    private Pipeline.Stage<MailItem>                matchStage;
+    private Pipeline.Stage<MailItem>                structureStage;
+    private boolean                                 multiFolder;
+    private MailSource                              source;
+    private AdaptiveLimit                           concurrency;
+    private final ProgressJournal                   journal;
+    private final DirCache                          dirCache = new DirCache(stats);
+    private volatile boolean                        stopping;
+    private final CountDownLatch                    finished = new CountDownLatch(1);
+    private final Set<BlockingQueue<Message>>       watching = ConcurrentHashMap.newKeySet();     // the new mail queues of the daemon folders.
+
+    public FetchJob(Cfg cfg, String stateFilename, boolean quiet, boolean test) throws IOException {
+        this(cfg, stateFilename, quiet, test, false);
+    }
+
+    public FetchJob(Cfg cfg, String stateFilename, boolean quiet, boolean test, boolean daemon) throws IOException {
+        Properties  savedState = Optional.ofNullable(Util.loadProperties(Util.getStateFile(stateFilename))).orElseGet(Properties::new);
+        this.cfg = cfg;
+        this.journal = test || !cfg.asBoolean("process.journal").orElse(Boolean.TRUE) ? null : new ProgressJournal(Util.getJournalFile(stateFilename), stats);
+        if (journal != null)
+            journal.recover(savedState);    // the progress of an earlier run cut short.
+        this.state = new Cfg(Util.toMap(savedState));
+        this.stateProps = Util.toProperties(state);
+        this.stateFilename = stateFilename;
+        this.quiet = quiet;
+        this.test = test;
+        this.daemon = daemon;
+        this.downloadDir = Paths.get(cfg.ensure("download.directory"));
+        this.groupbyPathers = MailService.buildGroupbyPathers(cfg);
+        this.mailMatchers = MailService.buildMailMatchers(cfg);
+        this.fileMatchers = MailService.buildFileMatchers(cfg);
+        this.sizeTerm = MailService.buildSizeSearchTerm(cfg);
+        this.resumable = cfg.asBoolean("download.resumable").orElse(Boolean.FALSE);
+    }
+
+    /**
+     * Download on the shared scheduler through the shared writer's buffers, and open connections within the shared budget
+     * (null for no limit), as the account of the state file.
+     */
+    public FetchJob share(KeyedScheduler sharedWorkers, AttachmentWriter sharedWriter, Semaphore connectionBudget) {
+        this.sharedWorkers = sharedWorkers;
+        this.sharedWriter = sharedWriter;
+        this.connectionBudget = connectionBudget;
+        this.group = stateFilename;
+        return this;
+    }
+
+    /** The writer of the downloads, with up to one pooled buffer per download thread. */
+    public static AttachmentWriter newWriter(long bufferSize, int threadCount) {
+        return new AttachmentWriter((int)Math.min(bufferSize, Integer.MAX_VALUE), Math.min(threadCount, MAX_POOLED_BUFFERS));
+    }
+
+    public static long bufferSize(Cfg cfg) {
+        return Util.parseByteSize(cfg.val("download.buffer.size").orElse(""), DEFAULT_BUFFER_SIZE);
+    }
+
+    public RunStats getStats() {
+        return stats;
+    }
+
+    public long getDurationMS() {
+        return durationMS;
+    }
+
+    public void run() throws Exception {
+        long        startMS = System.currentTimeMillis();
+        int         stageQueue = cfg.asInt("process.stage.queue").orElse(DEFAULT_STAGE_QUEUE);
+
+        workers = sharedWorkers != null ? sharedWorkers : initDownloadWorkers();
+        finalizers = new KeyedScheduler("finalize", cfg.asInt("process.finalize.threads").orElse(1), stageQueue);
+        writer = sharedWriter != null ? sharedWriter : newWriter(bufferSize(cfg), workers.threadCount());
+        concurrency = initAdaptiveLimit();
+        matchStage = pipeline.stage("match", cfg.asInt("process.match.threads").orElse(1), stageQueue, this::matchMail);
+        structureStage = pipeline.stage("structure", cfg.asInt("process.structure.threads").orElse(1), stageQueue, this::processStructure);
+        stats.gauge("queue.match", matchStage::queueDepth);
+        stats.gauge("queue.structure", structureStage::queueDepth);
+        stats.gauge("queue.download", workers::queueDepth);
+        stats.gauge("queue.finalize", finalizers::queueDepth);
+        if (concurrency != null) {
+            workers.limitGroup(group, concurrency::limit);
+            stats.gauge("concurrency.limit", concurrency::limit);
+            stats.gauge("concurrency.inflight", concurrency::inFlight);
+        }
+        ObjectName  mbean = RunStatsBean.register(stateFilename, stats);
+        Thread      shutdownHook = new Thread(this::onShutdown, "shutdown-" + stateFilename);
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+        try {
+            store = initAttachmentStore();
+            downloadIndex = initDownloadIndex();
+            initDirCache();
+            if (journal != null)
+                journal.open(cfg.asLong("process.journal.sync.ms").orElse(DEFAULT_JOURNAL_SYNC_MS));
+            source = MailSource.open(cfg);
+            scanFolders(source != null ? source.folders() : listFolders());
+
+            pipeline.close();
+            stats.add("download.failed", workers.failedCount(group) + finalizers.failedCount());
+            if (journal != null)
+                compactJournal();
+        } finally {
+            shutdown();
+            RunStatsBean.unregister(mbean);
+            durationMS = System.currentTimeMillis() - startMS;
+            writeSummary(startMS);
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch(IllegalStateException e) {
+                // shutting down, with the hook waiting on the run.
+            }
+            finished.countDown();
+        }
+
+        double      durationSec = (double)(durationMS / 100 * 100) / 1000;
+        if (!quiet) System.out.println("fetchAttachments finished.  duration: " + durationSec  + "s");
+        if (!quiet) stats.print();
+        if (!quiet && writer != sharedWriter) writer.printRates();
+        if (!quiet) Pipeline.printStats(stageStats(), durationSec);
+    }
+
+    // On SIGTERM, stop enumerating and let the messages enumerated so far go through the stages, waiting up to
+    // process.shutdown.timeout seconds for the run to end.  The journal is synced either way.
+    private void onShutdown() {
+        int         timeoutSec = cfg.asInt("process.shutdown.timeout").orElse(DEFAULT_SHUTDOWN_TIMEOUT_SEC);
+        stopping = true;
+        watching.forEach(arrived -> arrived.offer(WAKEUP));     // not to wait out the poll interval.
+        if (!quiet) System.out.println("Shutting down " + stateFilename + ", waiting up to " + timeoutSec + "s for the downloads in flight");
+        try {
+            if (!finished.await(timeoutSec, TimeUnit.SECONDS) && !quiet)
+                System.out.println("Downloads of " + stateFilename + " still in flight after " + timeoutSec + "s.  Checkpoint the journal.");
+            if (journal != null)
+                journal.sync();
+        } catch(Exception e) {
+            Dbg.error(log, "Failed to checkpoint on shutdown", e);
+        }
+    }
+
+    // The watermarks replayed from the journal at the start, and the progress of this run, are in the state now.
+    private synchronized void compactJournal() throws IOException {
+        Util.saveProperties(Util.getStateFile(stateFilename), stateProps);
+        journal.delete();
+    }
+
+    // The stats of the run as JSON next to the state file, for tracking the throughput across the runs.
+    private void writeSummary(long startMS) {
+        try {
+            Path    summaryPath = Util.getSummaryFile(stateFilename);
+            Files.write(summaryPath, stats.toJson(stateFilename, startMS, durationMS, stageStats()).getBytes("UTF-8"));
+            log.info("Run summary written to " + summaryPath);
+        } catch(Exception e) {
+            Dbg.error(log, "Failed to write the run summary", e);
+        }
+    }
+
+    private List<String> listFolders() throws Exception {
+        if (!MailService.hasFolderList(cfg))
+            return Arrays.asList(cfg.val("mail.folder").orElse("INBOX"));
+        if (connectionBudget != null)
+            connectionBudget.acquire();
+        Store   store = null;
+        try {
+            store = MailService.openStore(cfg);
+            List<String>    names = MailService.listFolders(cfg, store);
+            if (!quiet) System.out.println("Folders: " + names);
+            return names;
+        } finally {
+            if (store != null)
+                store.close();
+            if (connectionBudget != null)
+                connectionBudget.release();
+        }
+    }
+
+    // Scan the folders in parallel, up to process.parallel.folders at a time.  A failed folder doesn't stop the others.
+    private void scanFolders(List<String> folderNames) throws Exception {
+        multiFolder = folderNames.size() > 1;
+        int                     parallel = Math.min(Math.max(cfg.asInt("process.parallel.folders").orElse(DEFAULT_PARALLEL_FOLDERS), 1), folderNames.size());
+        int                     accountLimit = accountConnectionLimit(multiFolder ? parallel : 1);
+        accountConnections = new Semaphore(accountLimit, true);
+        folderConnections = Math.max(accountLimit / (multiFolder ? parallel : 1), 1);   // an even share for the folders in parallel.
+        if (!multiFolder) {
+            for (String name : folderNames)
+                scanFolder(new FolderScan(name));
+            return;
+        }
+
+        ExecutorService         folderRunner = Executors.newFixedThreadPool(parallel);
+        Map<String, Future<?>>  results = new LinkedHashMap<>();
+        try {
+            for (String name : folderNames)
+                results.put(name, folderRunner.submit(() -> { scanFolder(new FolderScan(name)); return null; }));
+            for (Map.Entry<String, Future<?>> entry : results.entrySet()) {
+                try {
+                    entry.getValue().get();
+                } catch(ExecutionException e) {
+                    Dbg.error(log, "Failed on folder " + entry.getKey(), e.getCause());
+                    stats.inc("folders.failed");
+                }
+            }
+        } finally {
+            folderRunner.shutdownNow();
+        }
+    }
+
+    private void scanFolder(FolderScan folder) throws Exception {
+        if (stopping)
+            return;
+        if (source != null) {
+            scanSource(folder);
+            return;
+        }
+        try {
+            acquireConnection();                // wait for a turn on the connections.
+            folder.connectionPermits++;
+            folder.mailbox = MailService.openMailbox(cfg, folder.name);
+            folder.connections = initConnectionPool(folder);
+            folder.uidValidity = MailService.getUIDValidity(folder.mailbox);
+            stats.inc("folders.scanned");
+
+            long        searchNS = System.nanoTime();
+            Message[]   messages = searchMessages(folder);
+            stats.time("search", searchNS);
+            try {
+                enumerate(folder, messages, true);
+                if (!stopping)
+                    folder.searchDone();
+            } finally {
+                drain();
+                saveState(folder);      // also when the connection is lost for good, for the next run to go on from the messages done.
+            }
+            if (daemon)
+                watch(folder);
+        } finally {
+            closeFolder(folder);
+        }
+    }
+
+    private void closeFolder(FolderScan folder) {
+        if (folder.connections != null)
+            folder.connections.close();
+        try {
+            if (folder.mailbox != null)
+                folder.mailbox.getStore().close();
+        } catch(Exception e) {
+            log.info("Failed to close: " + e);
+        }
+        releaseConnections(folder.connectionPermits);
+    }
+
+    // Enumerate stage, on the folder's thread.  The process limit applies to the initial search only.
+    // The UIDs of the messages are fetched up front.  When the connection is lost, the mailbox is reopened and the rest
+    // of the messages are looked up again by UID, going on from the message it was lost on.
+    private void enumerate(FolderScan folder, Message[] messages, boolean applyLimit) throws Exception {
+        int         processLimit = applyLimit ? cfg.asInt("process.mail.limit").orElse(0) : 0;
+        int         prefetchChunk = cfg.asInt("process.prefetch.chunk").orElse(DEFAULT_PREFETCH_CHUNK);
+        int         latest = messages.length;
+        int         oldest = processLimit <= 0 ? 0 : (messages.length < processLimit ? 0 : messages.length - processLimit);
+        long[]      uids = MailService.getUIDs(folder.mailbox, Arrays.copyOfRange(messages, oldest, latest));
+        int         resumedAt = 0;
+
+        if (!quiet) System.out.println((multiFolder ? folder.name + " " : "") + "Message count: " + messages.length + ", fetch from: " + (oldest+1) + ", to: " + latest);
+
+        for (int i = oldest + 1; i <= latest; i++) {
+            if (stopping) {
+                if (!quiet) System.out.println("Stop at message #" + i + " for shutdown");
+                break;
+            }
+            if (prefetchChunk > 0 && (i - oldest - 1) % prefetchChunk == 0)
+                prefetchMessages(folder, messages, i - 1, Math.min(i - 1 + prefetchChunk, latest));
+            Message     msg = messages[i - 1];
+            if (msg == null)
+                continue;           // expunged before the reconnect.
+            if (!quiet) System.out.println("Mail Message #" + i + (multiFolder ? " of " + folder.name : "") + ", download queue: " + workers.queueDepth());
+            try {
+                enumerateMessage(folder, msg, applyLimit ? i : msg.getMessageNumber(), uids != null ? uids[i - 1 - oldest] : 0);
+            } catch(Exception e) {
+                if (uids != null && resumedAt != i && MailService.isConnectionLost(e)) {
+                    log.warning("Connection lost on message #" + i + ", reconnect and resume: " + e);
+                    messages = resumeMessages(folder, messages, uids, oldest, i - 1);
+                    if (prefetchChunk > 0)      // the rest of the current chunk.
+                        prefetchMessages(folder, messages, i - 1, Math.min(oldest + ((i - oldest - 1) / prefetchChunk + 1) * prefetchChunk, latest));
+                    resumedAt = i--;        // retry the message once.
+                    continue;
+                }
+                Dbg.error(log, "Failed on message #" + i, e);
+            }
+        }
+    }
+
+    // Reopen the mailbox and look up the messages from index from on by their UIDs.  The ones expunged meanwhile are left null.
+    private Message[] resumeMessages(FolderScan folder, Message[] messages, long[] uids, int oldest, int from) throws Exception {
+        UIDFolder   mailbox = (UIDFolder)reconnect(folder, messages[from].getFolder());
+        Message[]   rest = mailbox.getMessagesByUID(Arrays.copyOfRange(uids, from - oldest, uids.length));
+        Message[]   resumed = Arrays.copyOf(messages, messages.length);
+        System.arraycopy(rest, 0, resumed, from, rest.length);
+        stats.inc("messages.resumed");
+        return resumed;
+    }
+
+    // Reopen the folder's mailbox in place of the lost one, unless another thread has already.  A connection cut off
+    // midway doesn't always close the folder, hence the check by identity.  Once reopening has failed, the folder fails
+    // fast.  The UIDs carry over to the new connection only if the UIDVALIDITY stays the same.
+    private Folder reconnect(FolderScan folder, Folder lost) throws Exception {
+        synchronized(folder.reconnectLock) {
+            if (folder.reconnectFailure != null)
+                throw folder.reconnectFailure;
+            if (folder.mailbox != lost)
+                return folder.mailbox;
+            try {
+                folder.mailbox.getStore().close();
+            } catch(Exception e) {
+                log.info("Failed to close: " + e);
+            }
+            try {
+                Folder  mailbox = MailService.reopenMailbox(cfg, folder.name);
+                if (MailService.getUIDValidity(mailbox) != folder.uidValidity) {
+                    mailbox.getStore().close();
+                    throw new MessagingException("UIDVALIDITY of " + folder.name + " has changed.  Can't resume by UID.");
+                }
+                folder.mailbox = mailbox;
+                stats.inc("connection.reconnects");
+                if (!quiet) System.out.println("Reconnected to " + folder.name);
+                return mailbox;
+            } catch(Exception e) {
+                folder.reconnectFailure = e;
+                throw e;
+            }
+        }
+    }
+
+    // The message again from the mailbox reopened after the connection it was fetched on is lost.
+    private Message refresh(MailItem item, Message lost) throws Exception {
+        Message     msg = ((UIDFolder)reconnect(item.folder, lost.getFolder())).getMessageByUID(item.uid);
+        if (msg == null)
+            throw new MessageRemovedException("Message UID " + item.uid + " is no longer in " + item.folder.name);
+        return msg;
+    }
+
+    // A stream read on a folder closed by the lost connection of another thread fails with IllegalStateException.
+    private boolean isReconnectable(MailItem item, Throwable e) {
+        return item.uid > 0 && item.folder.mailbox instanceof UIDFolder && (MailService.isConnectionLost(e) || !item.msg.getFolder().isOpen());
+    }
+
+    private void enumerateMessage(FolderScan folder, Message msg, int msgNum, long uid) throws Exception {
+        msg.getReceivedDate();      // throw on a lost connection, where the view would fall back to the defaults.
+        MessageView view = new MessageView(msg);
+
+        folder.enumerated(uid, view.receivedDate(), journal != null);
+        stats.inc("messages.scanned");
+        matchStage.put(new MailItem(folder, msgNum, view, uid));
+    }
+
+    // Scan a folder of the local source.  The process limit takes the latest messages of the folder; the dates are
+    // filtered after parsing.  Each chunk of messages is parsed in parallel on the common pool, then enumerated.
+    private void scanSource(FolderScan folder) throws Exception {
+        stats.inc("folders.scanned");
+        List<MailSource.Entry>  entries = source.list(folder.name);
+        Optional<SearchTerm>    dateRange = MailService.getDateRange(cfg, state, folder.name, true, quiet);
+        Session                 session = Session.getInstance(new Properties());
+        int                     processLimit = cfg.asInt("process.mail.limit").orElse(0);
+        int                     chunk = Math.max(cfg.asInt("process.prefetch.chunk").orElse(DEFAULT_PREFETCH_CHUNK), 1);
+        int                     oldest = processLimit <= 0 || entries.size() < processLimit ? 0 : entries.size() - processLimit;
+
+        if (!quiet) System.out.println((multiFolder ? folder.name + " " : "") + "Message count: " + entries.size() + ", fetch from: " + (oldest+1) + ", to: " + entries.size());
+
+        for (int from = oldest; from < entries.size() && !stopping; from += chunk) {
+            for (Message msg : parseMessages(session, entries.subList(from, Math.min(from + chunk, entries.size())))) {
+                if (dateRange.isPresent() && !msg.match(dateRange.get()))
+                    continue;
+                if (!quiet) System.out.println("Mail Message #" + msg.getMessageNumber() + (multiFolder ? " of " + folder.name : "") + ", download queue: " + workers.queueDepth());
+                try {
+                    enumerateMessage(folder, msg, msg.getMessageNumber(), 0);
+                } catch(Exception e) {
+                    Dbg.error(log, "Failed on message #" + msg.getMessageNumber(), e);
+                }
+            }
+        }
+        drain();
+        saveState(folder);
+        if (daemon && !quiet) System.out.println("Daemon mode does not watch the local mail source " + folder.name);
+    }
+
+    private List<Message> parseMessages(Session session, List<MailSource.Entry> entries) {
+        long        startNS = System.nanoTime();
+        try {
+            return entries.parallelStream()
+                .map(entry -> {
+                        try {
+                            return entry.load(session);
+                        } catch(Exception e) {
+                            Dbg.error(log, "Failed to parse " + entry, e);
+                            stats.inc("messages.unparsable");
+                            return null;
+                        }
+                    })
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList());
+        } finally {
+            stats.time("parse", startNS);
+        }
+    }
+
+    // Wait for the messages enumerated so far to go through all the stages.
+    private void drain() throws InterruptedException {
+        pipeline.awaitIdle();
+        workers.awaitIdle(group);
+        finalizers.awaitIdle();
+    }
+
+    // Daemon loop.  New messages are reported by the MessageCountListener, on the event dispatching thread,
+    // while IDLE is held on the mailbox by the idler thread or the NOOP poll is sent by the timer.
+    // Any access to the mailbox from the other threads ends the current IDLE command; the idler re-issues it.
+    private void watch(FolderScan folder) throws Exception {
+        Folder                      mailbox = folder.mailbox;
+        BlockingQueue<Message>      arrived = new LinkedBlockingQueue<>();
+        int                         keepaliveSec = Math.max(cfg.asInt("process.daemon.keepalive").orElse(DEFAULT_KEEPALIVE_SEC), 1);
+        int                         pollSec = Math.max(cfg.asInt("process.daemon.poll").orElse(DEFAULT_POLL_SEC), 1);
+        boolean                     useIdle = supportsIdle(mailbox) && cfg.asBoolean("process.daemon.idle").orElse(Boolean.TRUE);
+        ScheduledExecutorService    timer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread  t = new Thread(r, "keepalive-" + folder.name);
+                t.setDaemon(true);
+                return t;
+            });
+        Thread                      idler = useIdle ? new Thread(() -> idleLoop(mailbox), "idle-" + folder.name) : null;
+
+        mailbox.addMessageCountListener(new MessageCountAdapter() {
+                public void messagesAdded(MessageCountEvent e) {
+                    arrived.addAll(Arrays.asList(e.getMessages()));
+                }
+            });
+        timer.scheduleWithFixedDelay(() -> keepAlive(folder), useIdle ? keepaliveSec : pollSec, useIdle ? keepaliveSec : pollSec, TimeUnit.SECONDS);
+        if (idler != null) {
+            idler.setDaemon(true);
+            idler.start();
+        }
+        if (!quiet) System.out.println("Daemon mode, waiting for new mail in " + folder.name + " " + (useIdle ? "with IMAP IDLE" : "by polling every " + pollSec + "s"));
+
+        watching.add(arrived);
+        try {
+            while (!stopping) {
+                Message     msg = arrived.poll(pollSec, TimeUnit.SECONDS);
+                if (msg == WAKEUP)
+                    continue;
+                if (msg == null) {
+                    if (!mailbox.isOpen())
+                        throw new FolderClosedException(mailbox, "Mailbox closed while waiting for new mail");
+                    continue;
+                }
+                List<Message>   batch = new ArrayList<>();
+                batch.add(msg);
+                arrived.drainTo(batch);
+                batch.remove(WAKEUP);
+                long        startMS = System.currentTimeMillis();
+                long        downloaded = stats.get("parts.downloaded");
+                enumerate(folder, batch.toArray(new Message[batch.size()]), false);
+                drain();
+                saveState(folder);
+                if (!quiet) System.out.println("New messages: " + batch.size() + ", files downloaded: " + (stats.get("parts.downloaded") - downloaded) +
+                                               ", in " + (System.currentTimeMillis() - startMS) + "ms");
+            }
+        } finally {
+            watching.remove(arrived);
+            timer.shutdownNow();
+            if (idler != null)
+                idler.interrupt();
+        }
+    }
+
+    private static boolean supportsIdle(Folder mailbox) {
+        try {
+            return mailbox instanceof IMAPFolder && ((IMAPStore)mailbox.getStore()).hasCapability("IDLE");
+        } catch(Exception e) {
+            return false;
+        }
+    }
+
+    private static void idleLoop(Folder mailbox) {
+        while (!Thread.currentThread().isInterrupted() && mailbox.isOpen()) {
+            try {
+                ((IMAPFolder)mailbox).idle();   // returns when the mailbox is accessed by another thread.
+            } catch(FolderClosedException e) {
+                Dbg.error(log, "Mailbox closed while idle", e);
+                return;
+            } catch(Exception e) {
+                Dbg.error(log, "IDLE failed", e);
+                Util.sleep(1);
+            }
+        }
+    }
+
+    // Ends the current IDLE with a cheap command so the server does not time out the connection, or polls for new mail.
+    private static void keepAlive(FolderScan folder) {
+        try {
+            folder.mailbox.getMessageCount();
+            if (folder.connections != null)
+                folder.connections.keepAlive();
+        } catch(Exception e) {
+            Dbg.error(log, "Keepalive failed", e);
+        }
+    }
+
+    private void shutdown() {
+        pipeline.abort();       // no-op for the drained stages.
+        if (concurrency != null)
+            workers.limitGroup(group, null);
+        long        stillRunningCount = (workers != sharedWorkers ? workers.shutdown(1000) : 0) + finalizers.shutdown(1000);
+        log.info("After shut down workers, stillRunningCount: " + stillRunningCount);
+        try {
+            if (downloadIndex != null)
+                downloadIndex.close();
+            if (journal != null)
+                journal.close();
+        } catch(Exception e) {
+            log.info("Failed to close: " + e);
+        }
+    }
+
+    private List<Pipeline.StageStats> stageStats() {
+        List<Pipeline.StageStats>   list = pipeline.stats();
+        list.add(workers.stats());
+        list.add(finalizers.stats());
+        return list;
+    }
+
+    private Message[] searchMessages(FolderScan folder) throws Exception {
+        Folder                  mailbox = folder.mailbox;
+        long                    searchedUid = MailService.getLastUID(mailbox);     // before the fetch and the search, which may miss the messages arriving after.
+        boolean                 resumeFromLast = cfg.asBoolean("process.resume.from.last").orElse(Boolean.TRUE);
+        Optional<Message[]>     newMessages = resumeFromLast ? MailService.getMessagesAfterLastUid(mailbox, state, quiet) : Optional.empty();
+        Optional<SearchTerm>    dateRange = MailService.getDateRange(cfg, state, mailbox.getFullName(), !newMessages.isPresent(), quiet);
+        Optional<SearchTerm>    mailTerms = MailService.buildMailSearchTerms(cfg);
+        Optional<SearchTerm>    searchTerm = Util.flatOptionals(Util.asStream(dateRange, mailTerms)).reduce(AndTerm::new);
+        boolean                 serverSearch = cfg.asBoolean("process.server.search").orElse(Boolean.TRUE);
+        Message[]               messages;
+
+        if (newMessages.isPresent()) {
+            messages = newMessages.get();
+            if (searchTerm.isPresent() && messages.length > 0)
+                messages = mailbox.search(searchTerm.get(), messages);  // narrow down the new messages only.
+        } else if (searchTerm.isPresent()) {
+            messages = mailbox.search(searchTerm.get());
+        } else {
+            messages = mailbox.getMessages();
+        }
+
+        // Prune the messages too small for the file size filter in a separate SEARCH to count them.
+        if (serverSearch && sizeTerm.isPresent() && messages.length > 0) {
+            Message[]   sized = mailbox.search(sizeTerm.get(), messages);
+            stats.add("messages.pruned.size", messages.length - sized.length);
+            messages = sized;
+        }
+        folder.searchedUid = searchedUid;
+        return messages;
+    }
+
+    // Match stage
+    private void matchMail(MailItem item) throws Exception {
+        MessageView view = item.view;
+        if (!quiet) System.out.println("DATE: " + Util.timeMMddHHmm().format(view.receivedDate()) +
+                                       ", FROM: " + view.fromName() + " " + view.fromAddress());
+
+        if (sizeTerm.isPresent() && !item.msg.match(sizeTerm.get())) {    // verified here as well; a server may ignore LARGER.
+            log.info("mail too small for the file size filter");
+            stats.inc("messages.pruned.size");
+            messageDone(item);
+            return;
+        }
+        if (!mailMatchers.test(view)) {
+            log.info("mail not matched");
+            messageDone(item);
+            return;
+        } else {
+            log.info("mail matched");
+        }
+        stats.inc("messages.matched");
+        structureStage.put(item);
+    }
+
+    // Structure stage.  A message whose connection is lost is looked up again by UID on the reopened mailbox.
+    private void processStructure(MailItem item) throws Exception {
+        long        startNS = System.nanoTime();
+        try {
+            try {
+                processParts(item, item.msg);
+            } catch(Exception e) {
+                if (!isReconnectable(item, e))
+                    throw e;
+                log.warning("Connection lost on the structure of message #" + item.msgNum + ", retry after reconnect: " + e);
+                processParts(item, refresh(item, item.msg));
+            }
+        } catch(Exception e) {
+            item.folder.failed(item);           // not to be passed over by the saved state or the watermark.
+            throw e;
+        } finally {
+            partDone(item);                     // the structure stage's own count, once the downloads are queued.
+            stats.time("structure", startNS);
+        }
+    }
+
+    private void processParts(MailItem item, Message msg) throws Exception {
+        Path                    downloadPath = MailService.resolveDownloadPath(groupbyPathers, downloadDir, item.view);
+        Map<String, BodyPart>   attachmentParts = MailService.getAttachmentParts(msg, cfg, new LinkedHashMap<String, BodyPart>());
+        if (attachmentParts.size() > 0)
+            dirCache.ensure(downloadPath);
+
+        for (Map.Entry<String, BodyPart> entry : attachmentParts.entrySet()) {
+            String      section = entry.getKey();
+            BodyPart    bp = entry.getValue();
+            log.info("Processing file: " + bp.getFileName() + ", size: " + bp.getSize());
+            stats.inc("parts.discovered");
+
+            if (!fileMatchers.test(bp)) {
+                log.info("file not matched");
+                continue;
+            } else {
+                log.info("file matched");
+            }
+            stats.inc("parts.matched");
+
+            Path        file = downloadPath.resolve(bp.getFileName());
+            Path        tmpf = downloadPath.resolve(bp.getFileName() + "." + tmpSeq.incrementAndGet() + ".tmp");  // unique among the parts in flight.
+
+            if (journal != null && journal.isDone(item.folder.stateName(), item.folder.uidValidity, item.uid, section)) {
+                if (!quiet) System.out.println("Skip file done in an earlier run: " + file);
+                stats.inc("parts.journaled");
+                continue;
+            }
+
+            if (downloadIndex != null ? downloadIndex.contains(file, item.msgTime) :
+                Files.exists(file) && item.msgTime <= Files.getLastModifiedTime(file).toMillis()) {
+                if (!quiet) System.out.println("Skip existing file: " + file);
+                stats.inc("parts.skipped");
+                continue;
+            }
+
+            if (!test) {
+                String  key = MailService.getLowerFilename(bp);
+                item.remaining.incrementAndGet();
+                workers.submit(group, key, () -> {      // same name items are downloaded in order.
+                        byte[]  hash;
+                        try {
+                            hash = download(item, section, bp, tmpf, file);
+                        } catch(Exception e) {
+                            item.folder.failed(item);   // not to be passed over by the saved state.
+                            throw e;
+                        }
+                        finalizers.submit(key, () -> finalizeFile(item, section, tmpf, file, hash));
+                        return 1;
+                    });
+            } else {
+                if (!quiet) System.out.println("File to download: " + file);
+            }
+        }
+    }
+
+    // Download stage.  Return the content hash when the attachment store is used.
+    // Under the adaptive limit, the scheduler starts the download in its turn, and the download reports its time or its error to the limit.
+    // A download cut off by a lost connection is retried on a reopened connection, as many times as the pool has
+    // connections, which may all have been dropped at once.
+    private byte[] download(MailItem item, String section, BodyPart bp, Path tmpf, Path file) throws Exception {
+        if (!quiet) System.out.println("Downloading message #" + item.msgNum + " file: " + tmpf);
+        MessageDigest   digest = store != null ? AttachmentStore.newDigest() : null;
+        BodyPart        part = bp;
+        Message         source = item.msg;
+        int             retries = item.folder.connections != null ? item.folder.connections.size() : 1;
+        for (int attempt = 0; ; attempt++) {
+            long        token = concurrency != null ? concurrency.start() : 0;
+            long        startNS = System.nanoTime();
+            long        bytes;
+            try {
+                bytes = transfer(item, section, part, tmpf, file, digest);
+            } catch(Throwable e) {
+                if (AdaptiveLimit.isThrottling(e)) {
+                    stats.inc("download.throttled");
+                    log.warning("Download throttled or cut off by the server: " + e);
+                }
+                if (concurrency != null)
+                    concurrency.failed(token, e);
+                if (attempt >= retries || !isReconnectable(item, e))
+                    throw e;
+                stats.inc("download.retried");
+                if (digest != null)
+                    digest.reset();
+                if (item.folder.connections == null)
+                    part = MailService.resolvePart(source = refresh(item, source), section);
+                continue;
+            }
+            if (concurrency != null)
+                concurrency.succeeded(token, bytes, System.nanoTime() - startNS);
+            stats.add("download.bytes", bytes);
+            stats.time("download", startNS);
+            return digest != null ? digest.digest() : null;
+        }
+    }
+
+    private long transfer(MailItem item, String section, BodyPart bp, Path tmpf, Path file, MessageDigest digest) throws Exception {
+        if (isResumable(item, bp)) {
+            return downloadResumable(item, section, bp, tmpf, file, digest);
+        } else if (item.folder.connections != null && item.uid > 0) {
+            return item.folder.connections.call(folder -> {    // re-resolve the part by UID on a free connection.
+                    BodyPart    part = MailService.resolvePart(((UIDFolder)folder).getMessageByUID(item.uid), section);
+                    return writer.write(part.getInputStream(), tmpf, digest);
+                });
+        } else {
+            return writer.write(bp.getInputStream(), tmpf, digest);
+        }
+    }
+
+    private boolean isResumable(MailItem item, BodyPart bp) throws MessagingException {
+        return resumable && item.uid > 0 && item.folder.uidValidity > 0 && item.folder.mailbox instanceof IMAPFolder &&
+            bp.getSize() >= Util.parseByteSize(cfg.val("download.resumable.min.size").orElse(""), DEFAULT_RESUMABLE_MIN_SIZE);
+    }
+
+    // Fetch the raw part in ranges, continuing the partial file of an earlier failed download, then decode it.
+    private long downloadResumable(MailItem item, String section, BodyPart bp, Path tmpf, Path file, MessageDigest digest) throws Exception {
+        int                 chunk = (int)Util.parseByteSize(cfg.val("download.resumable.chunk").orElse(""), DEFAULT_RESUMABLE_CHUNK);
+        ResumableDownload   partial = new ResumableDownload(file, item.folder.uidValidity, item.uid, section, ((MimePart)bp).getEncoding(), bp.getSize());
+        long                offset = partial.resumeOffset();
+        if (offset > 0) {
+            if (!quiet) System.out.println("Resume " + file + " from byte " + offset + " of " + bp.getSize());
+            stats.inc("download.resumed");
+            stats.add("download.resumed.bytes", offset);
+        }
+        long                fetched = item.folder.connections != null ?
+            item.folder.connections.call(folder -> partial.fetch((IMAPFolder)folder, offset, chunk)) :
+            partial.fetch((IMAPFolder)item.folder.mailbox, offset, chunk);
+        stats.add("download.raw.bytes", fetched);
+        return partial.decode(writer, tmpf, digest);
+    }
+
+    // Finalize stage
+    private Object finalizeFile(MailItem item, String section, Path tmpf, Path file, byte[] hash) throws Exception {
+        long        startNS = System.nanoTime();
+        Object      result;
+        try {
+            result = moveFile(item, tmpf, file, hash);
+        } finally {
+            stats.time("rename", startNS);
+        }
+        if (journal != null && item.uid > 0)
+            journal.part(item.folder.stateName(), item.folder.uidValidity, item.uid, section);
+        partDone(item);
+        return result;
+    }
+
+    private void partDone(MailItem item) {
+        if (item.remaining.decrementAndGet() == 0)
+            messageDone(item);
+    }
+
+    // A message is done when it's not matched, or when its matched parts are all finalized.
+    private void messageDone(MailItem item) {
+        if (journal != null && item.uid > 0)
+            item.folder.done(item, journal);
+    }
+
+    private Object moveFile(MailItem item, Path tmpf, Path file, byte[] hash) throws Exception {
+        if (downloadIndex != null ? item.msgTime < downloadIndex.msgTime(file) :
+            Files.exists(file) && item.msgTime < Files.getLastModifiedTime(file).toMillis()) {
+            Files.delete(tmpf);     // a later message's file of the same name has come in first.
+            stats.inc("parts.superseded");
+            return 0;
+        }
+        if (store != null) {
+            store.put(tmpf, hash, file, item.msgTime);
+        } else {
+            Files.move(tmpf, file, StandardCopyOption.REPLACE_EXISTING);
+            Files.setLastModifiedTime(file, FileTime.fromMillis(item.msgTime));
+        }
+        if (downloadIndex != null)
+            downloadIndex.add(file, item.msgTime);
+        stats.inc("parts.downloaded");
+        if (!quiet) System.out.println("Downloaded message #" + item.msgNum + " file: " + file);
+        return 1;
+    }
+
+    // The folders save their own keys into the one state file of the config.
+    private synchronized void saveState(FolderScan folder) throws IOException {
+        Path        statePath = Util.getStateFile(stateFilename);
+        if (!quiet) System.out.println("State file for config: " + statePath);
+        if (!test && (folder.lastDate != null || folder.lastUid > 0)) {        // by UID alone when no message has matched.
+            String  name = folder.stateName();
+            Date    resumeDate = folder.failedDate != null && (folder.lastDate == null || folder.failedDate.before(folder.lastDate)) ? folder.failedDate : folder.lastDate;
+            long    resumeUid = Math.min(folder.lastUid, folder.failedUid - 1);     // the next run starts over at the failed message.
+            if (resumeDate != null) {
+                String  lastDate = Util.dateYYYYMMdd().format(resumeDate);
+                String  prevDate = stateProps.getProperty("download.last.date");
+                if (prevDate == null || prevDate.compareTo(lastDate) < 0)
+                    stateProps.put("download.last.date", lastDate);
+                stateProps.put("download.last.date." + name, lastDate);
+            }
+            if (folder.uidValidity > 0 && resumeUid > 0) {
+                stateProps.put("download.uidvalidity." + name, String.valueOf(folder.uidValidity));
+                stateProps.put("download.last.uid." + name, String.valueOf(resumeUid));
+            }
+            Util.saveProperties(statePath, stateProps);
+        }
+    }
+
+    // Bulk fetch the envelope (with INTERNALDATE and RFC822.SIZE), the BODYSTRUCTURE, and the UID of messages[from, to)
+    // in one FETCH command, instead of one lazy FETCH per message for each of them.
+    private void prefetchMessages(FolderScan folder, Message[] messages, int from, int to) {
+        FetchProfile    fp = new FetchProfile();
+        fp.add(FetchProfile.Item.ENVELOPE);
+        fp.add(FetchProfile.Item.CONTENT_INFO);
+        fp.add(UIDFolder.FetchProfileItem.UID);
+        try {
+            Message[]   batch = Arrays.stream(messages, from, to).filter(Objects::nonNull).toArray(Message[]::new);
+            if (batch.length > 0)
+                batch[0].getFolder().fetch(batch, fp);     // on the connection the messages come from.
+            stats.add("prefetch.messages", to - from);
+            stats.inc("prefetch.fetches");
+            stats.add("prefetch.roundtrips.saved", (to - from) * 3 - 1);  // envelope + structure + UID per message, less the bulk fetch.
+        } catch(Exception e) {
+            Dbg.error(log, "Prefetch failed on messages " + (from+1) + " to " + to, e);
+        }
+    }
+
+    private KeyedScheduler initDownloadWorkers() {
+        boolean virtual = Util.iequals(cfg.val("process.executor").orElse("platform"), "virtual");
+        int     maxWorkers = virtual ? 10000 : 1000;
+        int     workers = Math.min(Math.max(cfg.asInt("process.parallel.workers").orElse(1), 1), maxWorkers);   // min 1 to max 1000, or 10000 virtual
+        int     queueLimit = Math.max(cfg.asInt("process.queue.limit").orElse(workers * 100), 1);
+        return new KeyedScheduler("download", workers, queueLimit, virtual);
+    }
+
+    // With process.parallel.adaptive, process.parallel.workers is the most downloads in flight; the limit finds how many
+    // the server sustains.  Each job has its own limit, also on the download workers shared with the other accounts.
+    private AdaptiveLimit initAdaptiveLimit() {
+        if (!cfg.asBoolean("process.parallel.adaptive").orElse(Boolean.FALSE))
+            return null;
+        int     max = workers.threadCount();
+        return new AdaptiveLimit(stateFilename, cfg.asInt("process.parallel.adaptive.min").orElse(1), max,
+                                 cfg.asInt("process.parallel.adaptive.initial").orElse(Math.min(2, max)),
+                                 cfg.asDouble("process.parallel.adaptive.latency.tolerance").orElse(DEFAULT_LATENCY_TOLERANCE), stats);
+    }
+
+    private AttachmentStore initAttachmentStore() {
+        if (!cfg.asBoolean("download.dedup").orElse(Boolean.FALSE))
+            return null;
+        return new AttachmentStore(storeDir(), stats);
+    }
+
+    private Path storeDir() {
+        return cfg.val("download.dedup.store").map(Paths::get).orElse(downloadDir.resolve(".store"));
+    }
+
+    // Each groupby adds a level of directories under the download directory.  The dedup store is not walked.
+    private void initDirCache() throws IOException {
+        int     count = dirCache.warm(downloadDir, MailService.groupbyLevels(cfg), storeDir());
+        if (!quiet) System.out.println("Download directories: " + count);
+    }
+
+    // The dedup links share the time of the stored file, so the message time of each download path is kept in the index.
+    private DownloadIndex initDownloadIndex() throws IOException {
+        if (!cfg.asBoolean("download.index").orElse(Boolean.FALSE) && store == null)
+            return null;
+        DownloadIndex   index = new DownloadIndex(Util.getIndexFile(stateFilename), downloadDir, storeDir());
+        if (!index.open() && !quiet)
+            System.out.println("Rebuilt download index from " + downloadDir);
+        if (!quiet) System.out.println("Download index: " + index.size() + " files");
+        return index;
+    }
+
+    // The connections of the account, the search connection of each folder included.  Without process.parallel.connections,
+    // each of the folders in parallel has one connection.
+    private int accountConnectionLimit(int parallelFolders) {
+        return Math.min(Math.max(cfg.asInt("process.parallel.connections").orElse(parallelFolders), 1), 100);  // min 1 to max 100
+    }
+
+    // Take a connection of the account, and one of the budget shared with the other jobs.
+    private void acquireConnection() throws InterruptedException {
+        accountConnections.acquire();
+        if (connectionBudget != null) {
+            try {
+                connectionBudget.acquire();
+            } catch(InterruptedException e) {
+                accountConnections.release();
+                throw e;
+            }
+        }
+    }
+
+    private boolean tryAcquireConnection() {
+        if (!accountConnections.tryAcquire())
+            return false;
+        if (connectionBudget != null && !connectionBudget.tryAcquire()) {
+            accountConnections.release();
+            return false;
+        }
+        return true;
+    }
+
+    private void releaseConnections(int count) {
+        if (count <= 0)
+            return;
+        accountConnections.release(count);
+        if (connectionBudget != null)
+            connectionBudget.release(count);
+    }
+
+    // Extra connections for downloading, up to the folder's share of the account's connections less its search connection.
+    // With a shared budget, only the connections left unused by the other jobs are taken.
+    private ConnectionPool initConnectionPool(FolderScan folder) throws Exception {
+        int     count = folderConnections - 1;
+        if (count < 1 || !(folder.mailbox instanceof UIDFolder))
+            return null;
+        int     acquired = 0;
+        while (acquired < count && tryAcquireConnection())
+            acquired++;
+        if (acquired < 1)
+            return null;
+        folder.connectionPermits += acquired;
+        return new ConnectionPool(cfg, folder.name, acquired, stats);
+    }
+
+}
@@ -34,7 +34,7 @@ public class FetchMailAtt {
     }
 
     private static void usage() {
-        System.out.println("Usage: java FetchMailAtt -c config [-q | --quiet] [-t | --test] [-r | --reset] [-d | --dump] [-v | --version] [-h | --help] [-l LOG_LEVEL]");
+        System.out.println("Usage: java FetchMailAtt -c config[,config2,...] | config_directory [--workers N] [--connections N] [-q | --quiet] [-t | --test] [-r | --reset] [-d | --dump] [-w | --daemon] [-v | --version] [-h | --help] [-l LOG_LEVEL]");
     }
 
     public static void main(String[] args) {
@@ -44,6 +44,9 @@ public class FetchMailAtt {
         CmdLine.Arg<Boolean>    argTest = cl.arg(false).flag("t").name("test");
         CmdLine.Arg<Boolean>    argReset = cl.arg(false).flag("r").name("reset");
         CmdLine.Arg<Boolean>    argDump = cl.arg(false).flag("d").name("dump");
+        CmdLine.Arg<Boolean>    argDaemon = cl.arg(false).flag("w").name("daemon");
+        CmdLine.Arg<Integer>    argWorkers = cl.arg(0).name("workers");
+        CmdLine.Arg<Integer>    argConnections = cl.arg(0).name("connections");
         CmdLine.Arg<Boolean>    argVersion = cl.arg(false).flag("v").name("version");
         CmdLine.Arg<Boolean>    argHelp = cl.arg(false).flag("h").name("help");
         CmdLine.Arg<String>     argLogLevel = cl.arg("INFO").flag("l");
@@ -58,8 +61,6 @@ public class FetchMailAtt {
 
         try {
             boolean             quiet = argQuiet.value;
-            Properties          conf;
-            String              cfgName = argConf.value;
 
             if (argLogLevel.has) {
                 Dbg.setPkgLogLevel("", argLogLevel.value, new Dbg.CompactLogFormatter());
@@ -73,38 +74,46 @@ public class FetchMailAtt {
                 return;
             }
 
-            if (argConf.has) {
-                if ((conf = Util.loadProperties(Paths.get(cfgName))) == null) {
-                    conf = Util.loadResourceProperties(cfgName);
-                    if (!quiet && conf != null) System.out.println("Using config resource " + cfgName);
-                } else {
-                    if (!quiet) System.out.println("Using config file " + cfgName);
-                }
-                if (conf == null) {
-                    System.out.println("Config file " + cfgName + " not exists");
+            Map<String, Map<String, String>>    configs = new LinkedHashMap<>();     // state filename -> config
+            for (String cfgName : getConfigNames(argConf.has ? argConf.value : "")) {
+                Properties      conf = loadConfig(cfgName, quiet);
+                if (conf == null)
                     return;
-                }
-            } else {
-                cfgName = "default.conf";
-                if ((conf = Util.loadResourceProperties(cfgName)) == null) {
-                    System.out.println("conf/default.conf not exists");
+                String          stateFilename = Util.removeLastPart(Util.lastPart(Util.lastPart(cfgName, '/'), '\\'), '.');
+                if (configs.containsKey(stateFilename)) {
+                    System.out.println("Config file " + cfgName + " has the same name as another config.  The accounts would overwrite each other's saved state.");
                     return;
-                } else {
-                    if (!quiet) System.out.println("Using config resource conf/default.conf");
                 }
+                configs.put(stateFilename, Util.toMap(conf));
+            }
+            if (configs.isEmpty()) {
+                System.out.println("No config file in " + argConf.value);
+                return;
             }
 
-            String              stateFilename = Util.removeLastPart(Util.lastPart(Util.lastPart(cfgName, '/'), '\\'), '.');
             if (argReset.value) {
-                try {
-                    Files.delete(Util.getStateFile(stateFilename));
-                } catch(Exception e) {}
+                for (String stateFilename : configs.keySet()) {
+                    try {
+                        Files.delete(Util.getStateFile(stateFilename));
+                    } catch(Exception e) {}
+                    try {
+                        Files.delete(Util.getIndexFile(stateFilename));
+                    } catch(Exception e) {}
+                    try {
+                        Files.delete(Util.getJournalFile(stateFilename));
+                    } catch(Exception e) {}
+                }
             }
 
             if (argDump.value) {
-                MailService.dumpMessages(Util.toMap(conf));
+                configs.values().forEach(MailService::dumpMessages);
+            } else if (configs.size() == 1) {
+                Map.Entry<String, Map<String, String>>  entry = configs.entrySet().iterator().next();
+                MailService.fetchAttachments(entry.getValue(), entry.getKey(), quiet, argTest.value, argDaemon.value);
             } else {
-                MailService.fetchAttachments(Util.toMap(conf), stateFilename, quiet, argTest.value);
+                int     workers = argWorkers.value > 0 ? argWorkers.value :
+                    configs.values().stream().map(Cfg::new).mapToInt(cfg -> cfg.asInt("process.parallel.workers").orElse(1)).max().orElse(1);
+                MailService.fetchAttachments(configs, quiet, argTest.value, argDaemon.value, Math.min(workers, 1000), argConnections.value);
             }
 
         } catch (Throwable e) {
@@ -113,4 +122,35 @@ public class FetchMailAtt {
 
     }
 
+    // Comma separated list of config names, or a directory of *.conf files.  Default to default.conf.
+    private static List<String> getConfigNames(String confArg) throws IOException {
+        if (confArg.isEmpty())
+            return Arrays.asList("default.conf");
+        Path    dir = Paths.get(confArg);
+        if (Files.isDirectory(dir)) {
+            try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "*.conf")) {
+                List<String>    names = new ArrayList<>();
+                ds.forEach(file -> names.add(file.toString()));
+                Collections.sort(names);
+                return names;
+            }
+        }
+        return Arrays.asList(confArg.split("\\s*,\\s*"));
+    }
+
+    // Load the config from the file, or from the classpath resource.
+    private static Properties loadConfig(String cfgName, boolean quiet) throws IOException {
+        Properties  conf;
+        if ((conf = Util.loadProperties(Paths.get(cfgName))) == null) {
+            conf = Util.loadResourceProperties(cfgName);
+            if (!quiet && conf != null) System.out.println("Using config resource " + cfgName);
+        } else {
+            if (!quiet) System.out.println("Using config file " + cfgName);
+        }
+        if (conf == null) {
+            System.out.println("Config file " + cfgName + " not exists");
+        }
+        return conf;
+    }
+
 }
@@ -0,0 +1,77 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: FetchMailAtt
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2015 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+package fetchmailatt;
+
+import java.util.concurrent.atomic.*;
+
+
+/**
+ * Latency histogram with power of 2 buckets of nanoseconds.  Thread safe and lock free.
+ * The percentiles are the upper bounds of their buckets, so within a factor of 2 of the recorded values.
+ */
+public class Histogram {
+
+    private final LongAdder[]       buckets = new LongAdder[64];     // bucket i counts the values in [2^i, 2^(i+1))
+    private final LongAdder         count = new LongAdder();
+    private final LongAdder         sum = new LongAdder();
+    private final LongAccumulator   max = new LongAccumulator(Math::max, 0);
+
+    public Histogram() {
+        for (int i = 0; i < buckets.length; i++)
+            buckets[i] = new LongAdder();
+    }
+
+    public void record(long nanos) {
+        nanos = Math.max(nanos, 1);
+        buckets[63 - Long.numberOfLeadingZeros(nanos)].increment();
+        count.increment();
+        sum.add(nanos);
+        max.accumulate(nanos);
+    }
+
+    public long count() {
+        return count.sum();
+    }
+
+    public long totalNanos() {
+        return sum.sum();
+    }
+
+    public long maxNanos() {
+        return max.get();
+    }
+
+    public double meanNanos() {
+        long    n = count.sum();
+        return n == 0 ? 0 : (double)sum.sum() / n;
+    }
+
+    /** The value at or below which the fraction p (0 to 1) of the recorded values fall. */
+    public long percentileNanos(double p) {
+        long    n = count.sum();
+        if (n == 0)
+            return 0;
+        long    rank = Math.max((long)Math.ceil(p * n), 1);
+        long    seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i].sum();
+            if (seen >= rank)
+                return i >= 62 ? max.get() : Math.min((1L << (i + 1)) - 1, max.get());
+        }
+        return max.get();
+    }
+
+}
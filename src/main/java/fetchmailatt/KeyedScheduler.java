@@ -0,0 +1,348 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: FetchMailAtt
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2015 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+package fetchmailatt;
+
+import java.util.*;
+import java.util.logging.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.IntSupplier;
+
+
+/**
+ * Run tasks on a shared set of threads, keeping the tasks of the same key in submission order.
+ * The tasks of a key form a serial chain; only the head of a chain is ready to run.  Any idle thread
+ * takes whichever ready task is next, so a long task only holds up the tasks of its own key.
+ * Submission blocks when the number of pending tasks of the group reaches the limit.
+ *
+ * Tasks can be submitted under a group, e.g. the account of a fetch job sharing the scheduler.
+ * The ready tasks are taken from the groups in round robin, so one busy group can't starve the others.
+ * A group can have a limit of its running tasks; while at the limit, its ready tasks are passed over,
+ * taking no thread, and the other groups take their turns.
+ *
+ * In virtual thread mode, a dispatcher thread starts each ready task on a new virtual thread instead,
+ * with the number of running tasks bounded by a semaphore rather than by the thread count.
+ */
+public class KeyedScheduler {
+    private static final Logger log = Logger.getLogger(KeyedScheduler.class.getName());
+
+    public static final String DEFAULT_GROUP = "";
+
+    private static class Task {
+        final String        group;
+        final String        key;
+        final String        chain;          // the key within the group.
+        final Callable<?>   callable;
+
+        Task(String group, String key, Callable<?> callable) {
+            this.group = group;
+            this.key = key;
+            this.chain = group + '\0' + key;
+            this.callable = callable;
+        }
+    }
+
+    private final Object                        lock = new Object();
+    private final Map<String, Deque<Task>>      chains = new HashMap<>();       // group and key -> tasks of the key, head being ready or running.
+    private final Map<String, Deque<Task>>      readyGroups = new HashMap<>();  // group -> ready tasks of the group, guarded by lock.
+    private final Deque<String>                 groupTurns = new ArrayDeque<>();    // groups having ready tasks, in round robin order.
+    private final Map<String, int[]>            groupPending = new HashMap<>();     // group -> pending count, guarded by lock.
+    private final Map<String, int[]>            groupRunning = new HashMap<>();     // group -> running count, guarded by lock.
+    private final Map<String, IntSupplier>      groupLimits = new HashMap<>();      // group -> limit of running tasks, guarded by lock.
+    private final ConcurrentMap<String, AtomicLong> groupFailed = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Semaphore>  groupPermits = new ConcurrentHashMap<>();   // group -> pending budget.
+    private final int                           pendingLimit;
+    private final List<Thread>                  threads = new ArrayList<>();
+    private final int                           concurrency;
+    private final ExecutorService               virtualExecutor;
+    private final Semaphore                     runPermits;
+    private final ConcurrentMap<String, AtomicLong> busyNanos = new ConcurrentSkipListMap<>();
+    private final AtomicLong                    failed = new AtomicLong();
+    private final AtomicInteger                 running = new AtomicInteger();
+    private final LongAdder                     completed = new LongAdder();
+    private final LongAdder                     queueSum = new LongAdder();
+    private final String                        name;
+    private final long                          startNS = System.nanoTime();
+    private int                                 pending;                        // submitted but not finished, guarded by lock.
+    private int                                 maxPending;
+
+    public KeyedScheduler(String name, int threadCount, int pendingLimit) {
+        this(name, threadCount, pendingLimit, false);
+    }
+
+    /** Run on virtual threads if useVirtual and the JVM supports them, otherwise on threadCount platform threads. */
+    public KeyedScheduler(String name, int concurrency, int pendingLimit, boolean useVirtual) {
+        this.name = name;
+        this.pendingLimit = Math.max(pendingLimit, 1);     // per group, so a group parked at its limit can't block the others' submissions.
+        this.concurrency = Math.max(concurrency, 1);
+        this.virtualExecutor = useVirtual ? VirtualThreads.newExecutor(name + "-virtual").orElse(null) : null;
+        if (useVirtual && virtualExecutor == null)
+            log.warning("Virtual threads are not supported by the JVM.  Use platform threads.");
+
+        if (virtualExecutor != null) {
+            runPermits = new Semaphore(this.concurrency);
+            busyNanos.put(name + "-virtual", new AtomicLong());
+            Thread  t = new Thread(() -> dispatchLoop(busyNanos.get(name + "-virtual")), name + "-dispatcher");
+            threads.add(t);
+            t.start();
+        } else {
+            runPermits = null;
+            for (int i = 0; i < this.concurrency; i++) {
+                Thread  t = new Thread(this::runLoop, name + "-" + (i + 1));
+                busyNanos.put(t.getName(), new AtomicLong());
+                threads.add(t);
+                t.start();
+            }
+        }
+    }
+
+    /** Max number of tasks running at the same time. */
+    public int threadCount() {
+        return concurrency;
+    }
+
+    public boolean isVirtual() {
+        return virtualExecutor != null;
+    }
+
+    /** Queue the task after the pending tasks of the same key.  Block while the pending limit is reached. */
+    public void submit(String key, Callable<?> callable) throws InterruptedException {
+        submit(DEFAULT_GROUP, key, callable);
+    }
+
+    /** Queue the task of the group, after the pending tasks of the same key in the group.  The groups don't order each other's tasks. */
+    public void submit(String group, String key, Callable<?> callable) throws InterruptedException {
+        groupPermits.computeIfAbsent(group, k -> new Semaphore(pendingLimit, true)).acquire();
+        Task    task = new Task(group, key, callable);
+        synchronized(lock) {
+            queueSum.add(pending - running.get());
+            pending++;
+            maxPending = Math.max(maxPending, pending);
+            groupPending.computeIfAbsent(group, k -> new int[1])[0]++;
+            Deque<Task> chain = chains.get(task.chain);
+            if (chain == null) {
+                chain = new ArrayDeque<>();
+                chains.put(task.chain, chain);
+                chain.add(task);
+                addReady(task);
+            } else {
+                chain.add(task);
+            }
+        }
+    }
+
+    /** Limit the running tasks of the group to what the limit reads at each turn, or no limit if null. */
+    public void limitGroup(String group, IntSupplier limit) {
+        synchronized(lock) {
+            if (limit != null)
+                groupLimits.put(group, limit);
+            else
+                groupLimits.remove(group);
+            lock.notifyAll();
+        }
+    }
+
+    // Under lock.
+    private void addReady(Task task) {
+        Deque<Task> groupReady = readyGroups.get(task.group);
+        if (groupReady == null) {
+            groupReady = new ArrayDeque<>();
+            readyGroups.put(task.group, groupReady);
+            groupTurns.add(task.group);
+        }
+        groupReady.add(task);
+        lock.notifyAll();
+    }
+
+    // Take the next ready task from the first group in turn that is under its limit, and put the group at the back of the turns.
+    private Task takeReady() throws InterruptedException {
+        synchronized(lock) {
+            String      group;
+            while ((group = nextTurn()) == null)
+                lock.wait();        // woken by a submit, a finished task or a new limit.
+            Deque<Task> groupReady = readyGroups.get(group);
+            Task        task = groupReady.poll();
+            if (groupReady.isEmpty())
+                readyGroups.remove(group);
+            else
+                groupTurns.add(group);
+            groupRunning.computeIfAbsent(group, k -> new int[1])[0]++;
+            return task;
+        }
+    }
+
+    // Under lock.
+    private String nextTurn() {
+        for (Iterator<String> it = groupTurns.iterator(); it.hasNext(); ) {
+            String      group = it.next();
+            IntSupplier limit = groupLimits.get(group);
+            int[]       running = groupRunning.get(group);
+            if (limit == null || running == null || running[0] < limit.getAsInt()) {
+                it.remove();
+                return group;
+            }
+        }
+        return null;
+    }
+
+    private void runLoop() {
+        AtomicLong  busy = busyNanos.get(Thread.currentThread().getName());
+        try {
+            while (true) {
+                run(takeReady(), busy);
+            }
+        } catch(InterruptedException e) {
+            // shutdown
+        }
+    }
+
+    private void dispatchLoop(AtomicLong busy) {
+        try {
+            while (true) {
+                Task    task = takeReady();
+                runPermits.acquire();
+                virtualExecutor.execute(() -> {
+                        try {
+                            run(task, busy);
+                        } finally {
+                            runPermits.release();
+                        }
+                    });
+            }
+        } catch(InterruptedException e) {
+            // shutdown
+        }
+    }
+
+    private void run(Task task, AtomicLong busy) {
+        long    startNS = System.nanoTime();
+        running.incrementAndGet();
+        try {
+            task.callable.call();
+        } catch(Exception e) {
+            failed.incrementAndGet();
+            groupFailed.computeIfAbsent(task.group, k -> new AtomicLong()).incrementAndGet();
+            Dbg.error(log, "Task failed on " + task.key, e);
+        } finally {
+            busy.addAndGet(System.nanoTime() - startNS);
+            running.decrementAndGet();
+            completed.increment();
+            finish(task);
+        }
+    }
+
+    private void finish(Task task) {
+        synchronized(lock) {
+            Deque<Task> chain = chains.get(task.chain);
+            chain.poll();
+            if (chain.isEmpty())
+                chains.remove(task.chain);
+            else
+                addReady(chain.peek());     // next task of the key becomes ready.
+            pending--;
+            if (--groupPending.get(task.group)[0] == 0)
+                groupPending.remove(task.group);
+            if (--groupRunning.get(task.group)[0] == 0)
+                groupRunning.remove(task.group);
+            lock.notifyAll();
+        }
+        groupPermits.get(task.group).release();
+    }
+
+    /** Wait until all the submitted tasks have finished. */
+    public void awaitIdle() throws InterruptedException {
+        synchronized(lock) {
+            while (pending > 0)
+                lock.wait();
+        }
+    }
+
+    /** Wait until all the submitted tasks of the group have finished. */
+    public void awaitIdle(String group) throws InterruptedException {
+        synchronized(lock) {
+            while (groupPending.containsKey(group))
+                lock.wait();
+        }
+    }
+
+    /** Stop the threads after the submitted tasks have finished, waiting up to timeoutMS.  Return the count of unfinished tasks. */
+    public int shutdown(long timeoutMS) {
+        long    deadline = System.currentTimeMillis() + timeoutMS;
+        synchronized(lock) {
+            try {
+                while (pending > 0 && System.currentTimeMillis() < deadline)
+                    lock.wait(Math.max(deadline - System.currentTimeMillis(), 1));
+            } catch(InterruptedException ignored) {
+            }
+        }
+        threads.forEach(Thread::interrupt);
+        if (virtualExecutor != null)
+            virtualExecutor.shutdownNow();
+        synchronized(lock) {
+            return pending;
+        }
+    }
+
+    /** Count of tasks submitted and waiting to run. */
+    public int queueDepth() {
+        synchronized(lock) {
+            return pending - running.get();
+        }
+    }
+
+    public int pendingCount() {
+        synchronized(lock) {
+            return pending;
+        }
+    }
+
+    public int maxPendingCount() {
+        synchronized(lock) {
+            return maxPending;
+        }
+    }
+
+    public long failedCount() {
+        return failed.get();
+    }
+
+    public long failedCount(String group) {
+        AtomicLong  count = groupFailed.get(group);
+        return count == null ? 0 : count.get();
+    }
+
+    /** Fraction of the time each thread has been running tasks since the scheduler started.  All virtual threads count as one. */
+    public Map<String, Double> utilization() {
+        double              elapsed = Math.max(System.nanoTime() - startNS, 1) * (virtualExecutor != null ? concurrency : 1);
+        Map<String, Double> map = new LinkedHashMap<>();
+        busyNanos.forEach((name, busy) -> map.put(name, busy.get() / elapsed));
+        return map;
+    }
+
+    /** Throughput and queue occupancy, as a pipeline stage. */
+    public Pipeline.StageStats stats() {
+        long    count = completed.sum();
+        double  busy = utilization().values().stream().mapToDouble(Double::doubleValue).average().orElse(0);
+        synchronized(lock) {
+            return new Pipeline.StageStats(name, concurrency, count, failed.get(), busy, count == 0 ? 0 : (double)queueSum.sum() / count, maxPending);
+        }
+    }
+
+    public void printUtilization() {
+        utilization().forEach((name, util) -> System.out.println("  " + name + ": " + String.format("%.1f%%", util * 100) + " busy"));
+    }
+
+}
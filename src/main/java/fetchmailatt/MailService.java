@@ -17,7 +17,6 @@ package fetchmailatt;
 
 import java.io.*;
 import java.nio.file.*;
-import java.nio.file.attribute.FileTime;
 import java.util.*;
 import java.util.regex.*;
 import java.util.logging.*;
@@ -28,10 +27,15 @@ import java.util.stream.*;
 import java.util.concurrent.*;
 import javax.mail.*;
 import javax.mail.search.*;
+import com.sun.mail.imap.IMAPFolder;
 
 public class MailService {
     private static final Logger log = Logger.getLogger(MailService.class.getName());
 
+    private static final int DEFAULT_RECONNECT_RETRIES = 5;
+    private static final int DEFAULT_RECONNECT_DELAY_SEC = 1;
+    private static final int MAX_RECONNECT_DELAY_SEC = 60;
+
     /*
       Sample config:
       MailService.fetchAttachments(Util.asMap(
@@ -51,107 +55,65 @@ public class MailService {
       ), false, true);
     */
     public static void fetchAttachments(Map<String, String> config, String stateFilename, boolean quiet, boolean test) throws Exception {
-        long                    startMS = System.currentTimeMillis();
-        Cfg                     cfg = new Cfg(config);
-        Cfg                     state = new Cfg(Util.toMap(Util.loadProperties(Util.getStateFile(stateFilename))));
-        Path                    downloadDir = Paths.get(cfg.ensure("download.directory"));
-        List                    groupbyPathers = buildGroupbyPathers(cfg);
-        Predicate<Message>      mailMatchers = buildMailMatchers(cfg);
-        Predicate<BodyPart>     fileMatchers = buildFileMatchers(cfg);
-        Optional<SearchTerm>    dateRange = getDateRange(cfg, state, quiet);
-        List<ExecutorService>   workers = initDownloadWorkers(cfg);
-        int                     processLimit = cfg.asInt("process.mail.limit").orElse(0);
-        Message[]               messages;
-        Folder                  mailbox = openMailbox(cfg);
-        List<Future>            downloadFutures = new ArrayList<>();
-
-        if (dateRange.isPresent()) {
-            messages = mailbox.search(dateRange.get());
-        } else {
-            messages = mailbox.getMessages();
-        }
-
-        int                     latest = messages.length;
-        int                     oldest = processLimit <= 0 ? 0 : (messages.length < processLimit ? 0 : messages.length - processLimit);
-        Date                    lastDate = null;
-
-        if (!quiet) System.out.println("Message count: " + messages.length + ", fetch from: " + (oldest+1) + ", to: " + latest);
-
-        for (int i = oldest + 1; i <= latest; i++) {
-            int                 msgNum = i;
-            if (!quiet) System.out.println("Mail Message #" + msgNum);
-            try {
-                Message         msg = messages[i - 1];
-                long            msgTime = msg.getReceivedDate().getTime();
-
-                lastDate = Util.later(lastDate, msg.getReceivedDate());
-                if (!quiet) System.out.println("DATE: " + Util.timeMMddHHmm().format(msg.getReceivedDate()) +
-                                               ", FROM: " + getFromName(msg) + " " + getFromAddress(msg));
-
-                if (!mailMatchers.test(msg)) {
-                    log.info("mail not matched");
-                    continue;
-                } else {
-                    log.info("mail matched");
-                }
-
-                Path            downloadPath = resolveDownloadPath(groupbyPathers, downloadDir, msg);
-                List<BodyPart>  attachmentParts = getAttachmentParts(msg, cfg, new ArrayList<BodyPart>());
-                if (attachmentParts.size() > 0 && !Files.exists(downloadPath))
-                    Files.createDirectories(downloadPath);
-
-                for (BodyPart bp : attachmentParts) {
-                    log.info("Processing file: " + bp.getFileName() + ", size: " + bp.getSize());
+        fetchAttachments(config, stateFilename, quiet, test, false);
+    }
 
-                    if (!fileMatchers.test(bp)) {
-                        log.info("file not matched");
-                        continue;
-                    } else {
-                        log.info("file matched");
-                    }
+    /** In daemon mode, keep fetching the attachments of the new mail as it arrives, without returning. */
+    public static void fetchAttachments(Map<String, String> config, String stateFilename, boolean quiet, boolean test, boolean daemon) throws Exception {
+        Cfg         cfg = new Cfg(config);
+        new FetchJob(cfg, stateFilename, quiet, test, daemon).run();
+        cfg.asLong("process.sleep.before.exit").ifPresent( sec -> Util.sleep(sec) );
+    }
 
-                    Path        tmpf = downloadPath.resolve(bp.getFileName() + ".tmp");
-                    Path        file = downloadPath.resolve(bp.getFileName());
+    /**
+     * Run the jobs of the configs, keyed by their state filenames, in one process.  The jobs share workers number of
+     * download threads, taking turns between the accounts, with one pool of buffers, and at most connections number of
+     * mail server connections (0 for no limit).  Print a summary of each account at the end.
+     */
+    public static void fetchAttachments(Map<String, Map<String, String>> configs, boolean quiet, boolean test, boolean daemon,
+                                        int workers, int connections) throws Exception {
+        boolean                     virtual = configs.values().stream().anyMatch(config -> Util.iequals(config.get("process.executor"), "virtual"));
+        KeyedScheduler              sharedWorkers = new KeyedScheduler("download", workers, workers * 100, virtual);
+        AttachmentWriter            sharedWriter = FetchJob.newWriter(configs.values().stream().map(Cfg::new).mapToLong(FetchJob::bufferSize).max().orElse(0), workers);
+        Semaphore                   connectionBudget = connections > 0 ? new Semaphore(connections, true) : null;
+        ExecutorService             jobRunner = Executors.newFixedThreadPool(configs.size());
+        Map<String, FetchJob>       jobs = new LinkedHashMap<>();
+        Map<String, Future<?>>      results = new LinkedHashMap<>();
 
-                    if (Files.exists(file) && msgTime <= Files.getLastModifiedTime(file).toMillis()) {
-                        if (!quiet) System.out.println("Skip existing file: " + file);
-                        continue;
-                    }
+        try {
+            for (Map.Entry<String, Map<String, String>> entry : configs.entrySet()) {
+                FetchJob    job = new FetchJob(new Cfg(entry.getValue()), entry.getKey(), quiet, test, daemon).share(sharedWorkers, sharedWriter, connectionBudget);
+                jobs.put(entry.getKey(), job);
+                results.put(entry.getKey(), jobRunner.submit(() -> { job.run(); return null; }));
+            }
 
-                    if (!test) {
-                        int     index = Util.md5int(getLowerFilename(bp)) % workers.size(); // md5-hash name to the same ordered queue for same name items.
-                        downloadFutures.add(workers.get(index).submit(() -> {
-                                if (!quiet) System.out.println("Downloading message #" + msgNum + " file: " + file);
-                                Files.copy(bp.getInputStream(), tmpf, StandardCopyOption.REPLACE_EXISTING);
-                                Files.move(tmpf, file, StandardCopyOption.REPLACE_EXISTING);
-                                Files.setLastModifiedTime(file, FileTime.fromMillis(msgTime));
-                                if (!quiet) System.out.println("Downloaded message #" + msgNum + " file: " + file);
-                                return 1;
-                                }));
-                    } else {
-                        if (!quiet) System.out.println("File to download: " + file);
-                    }
+            System.out.println(String.format("%-20s %9s %9s %10s %9s %8s %12s %9s  %s",
+                                             "account", "scanned", "matched", "downloaded", "skipped", "failed", "bytes", "duration", "status"));
+            for (Map.Entry<String, Future<?>> entry : results.entrySet()) {
+                String      status = "ok";
+                try {
+                    entry.getValue().get();
+                } catch(ExecutionException e) {
+                    Dbg.error(log, "Failed on " + entry.getKey(), e.getCause());
+                    status = "failed: " + e.getCause();
                 }
-            } catch(Exception e) {
-                e.printStackTrace();
+                FetchJob    job = jobs.get(entry.getKey());
+                RunStats    stats = job.getStats();
+                System.out.println(String.format("%-20s %9d %9d %10d %9d %8d %12d %8.1fs  %s", entry.getKey(),
+                                                 stats.get("messages.scanned"), stats.get("messages.matched"), stats.get("parts.downloaded"),
+                                                 stats.get("parts.skipped"), stats.get("download.failed"), stats.get("download.bytes"),
+                                                 job.getDurationMS() / 1000.0, status));
             }
+            if (!quiet) {
+                sharedWorkers.printUtilization();
+                sharedWriter.printRates();
+            }
+        } finally {
+            jobRunner.shutdownNow();
+            sharedWorkers.shutdown(1000);
         }
-
-        Util.waitAll(downloadFutures);
-
-        Path    statePath = Util.getStateFile(stateFilename);
-        if (!quiet) System.out.println("State file for config: " + statePath);
-        if (!test && lastDate != null) {
-            Util.saveProperties(statePath, Util.asProperties("download.last.date", Util.dateYYYYMMdd().format(lastDate)));
-        }
-
-        long    stillRunningCount = shutdownWorkers(workers);
-        log.info("After shut down workers, stillRunningCount: " + stillRunningCount);
-
-        double  durationSec = (double)((System.currentTimeMillis() - startMS) / 100 * 100) / 1000;
-        if (!quiet) System.out.println("fetchAttachments finished.  duration: " + durationSec  + "s");
-
-        cfg.asLong("process.sleep.before.exit").ifPresent( sec -> Util.sleep(sec) );
+        configs.values().stream().map(Cfg::new).map(cfg -> cfg.asLong("process.sleep.before.exit").orElse(0L)).max(Long::compare)
+            .ifPresent( sec -> Util.sleep(sec) );
     }
 
     public static void dumpMessages(Map<String, String> config) {
@@ -212,149 +174,208 @@ public class MailService {
         }
     }
 
-    private static Folder openMailbox(Cfg cfg) throws Exception {
-        Session     session = Session.getInstance(Util.asProperties("mail.store.protocol", cfg.val("mail.store.protocol").orElse("imaps")));
-        Store       store = session.getStore();
-        store.connect(cfg.ensure("mail.host"), cfg.ensure("mail.username"), cfg.ensure("mail.password"));
+    static Folder openMailbox(Cfg cfg) throws Exception {
+        return openMailbox(cfg, cfg.val("mail.folder").orElse("INBOX"));
+    }
 
-        Folder      mailbox = store.getFolder(cfg.val("mail.folder").orElse("INBOX"));
+    static Folder openMailbox(Cfg cfg, String folderName) throws Exception {
+        Store       store = openStore(cfg);
+        Folder      mailbox = store.getFolder(folderName);
         mailbox.open(Folder.READ_ONLY);
         return mailbox;
     }
-    
-    private static Date parseDate(String dateStr) {
-        dateStr = dateStr.trim().replaceAll("/", "-");
-        return Util.parseDate(dateStr, Util.dateYYYYMMdd(), Util.dateMMddyyyy2());
-    }
 
-    private static Optional<SearchTerm> getDateRange(Cfg cfg, Cfg state, boolean quiet) {
-        boolean     resumeFromLast = cfg.asBoolean("process.resume.from.last").orElse(Boolean.TRUE);
-        Date        downloadLastDate = parseDate(state.val("download.last.date").orElse(""));
-        Date        fromDate = parseDate(cfg.val("process.from.date").orElse(""));
-        Date        toDate = parseDate(cfg.val("process.to.date").orElse(""));
-        int         previousDays = cfg.asInt("process.previous.days").orElse(0);
-
-        if (previousDays > 0) {
-            // previousDays overrides fromDate and toDate.
-            toDate = new Date();
-            fromDate = Util.later(fromDate, Util.addDays(toDate, -previousDays));
-        }
-
-        if (resumeFromLast) {
-            if (!quiet) System.out.println("Resume from last download date: " + (downloadLastDate != null ? Util.dateYYYYMMdd().format(downloadLastDate) : "none"));
-            fromDate = Util.later(fromDate, downloadLastDate);
+    /**
+     * Open the folder again after the connection has been lost.  Retry up to mail.reconnect.retries times, waiting
+     * from mail.reconnect.delay seconds in between, doubling each time up to a minute.
+     */
+    static Folder reopenMailbox(Cfg cfg, String folderName) throws Exception {
+        int         retries = cfg.asInt("mail.reconnect.retries").orElse(DEFAULT_RECONNECT_RETRIES);
+        int         delaySec = Math.max(cfg.asInt("mail.reconnect.delay").orElse(DEFAULT_RECONNECT_DELAY_SEC), 1);
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return openMailbox(cfg, folderName);
+            } catch(Exception e) {
+                if (attempt >= retries)
+                    throw e;
+                log.warning("Reconnect to " + folderName + " failed, retry in " + delaySec + "s: " + e);
+                Thread.sleep(delaySec * 1000L);
+                delaySec = Math.min(delaySec * 2, MAX_RECONNECT_DELAY_SEC);
+            }
         }
-
-        if (fromDate != null && toDate != null)
-            return Optional.of(new AndTerm(new ReceivedDateTerm(ComparisonTerm.GE, fromDate),
-                                           new ReceivedDateTerm(ComparisonTerm.LE, toDate)));
-        if (fromDate != null)
-            return Optional.of(new ReceivedDateTerm(ComparisonTerm.GE, fromDate));
-        if (toDate != null)
-            return Optional.of(new ReceivedDateTerm(ComparisonTerm.LE, toDate));
-        return Optional.empty();
     }
 
-
-    private static List<ExecutorService> initDownloadWorkers(Cfg cfg) throws Exception {
-        int     workers = Math.min(Math.max(cfg.asInt("process.parallel.workers").orElse(1), 1), 1000); // min 1 to max 1000
-        return IntStream.range(0, workers).mapToObj(i -> Executors.newSingleThreadExecutor()).collect(Collectors.toList());
+    /**
+     * Whether the error comes from a connection closed by the server or broken on the way.  A response cut off midway
+     * may also fail as a runtime exception in reading it.
+     */
+    static boolean isConnectionLost(Throwable e) {
+        Throwable   t = e;
+        for (int depth = 0; t != null && depth < 10; depth++, t = t.getCause()) {     // MessagingException chains its next exception as the cause.
+            if (t instanceof FolderClosedException || t instanceof StoreClosedException || t instanceof com.sun.mail.util.FolderClosedIOException ||
+                t instanceof com.sun.mail.iap.ConnectionException || t instanceof java.net.SocketException)
+                return true;
+            if (t instanceof RuntimeException && Util.asStream(t.getStackTrace()).anyMatch(f -> f.getClassName().equals("com.sun.mail.iap.ResponseInputStream")))
+                return true;
+        }
+        return false;
     }
 
-    private static long shutdownWorkers(List<ExecutorService> workers) {
-        // Request graceful shutdown, wait termination, force shutdown on still running, wait at the end, return remaining running count.
-        return workers.stream().peek(w -> w.shutdown()).filter(w -> !waitTerm(w)).peek(w -> w.shutdownNow()).filter(w -> !waitTerm(w)).count();
+    static Store openStore(Cfg cfg) throws Exception {
+        Session     session = Session.getInstance(Util.asProperties("mail.store.protocol", cfg.val("mail.store.protocol").orElse("imaps")));
+        Store       store = session.getStore();
+        store.connect(cfg.ensure("mail.host"), cfg.asInt("mail.port").orElse(-1), cfg.ensure("mail.username"), cfg.ensure("mail.password"));
+        return store;
+    }
+
+    /** Whether mail.folder has more than a single folder name, as a comma separated list or with the wildcards. */
+    static boolean hasFolderList(Cfg cfg) {
+        String      folders = cfg.val("mail.folder").orElse("INBOX");
+        return folders.indexOf(',') >= 0 || folders.indexOf('*') >= 0 || folders.indexOf('%') >= 0;
+    }
+
+    /**
+     * Expand the comma separated folder names of mail.folder, with the wildcards * (any characters) and % (any characters
+     * within one level of the hierarchy).  The folders not holding messages are left out, and so is the all-mail folder of
+     * GMail (the \All special use folder), which has a copy of the messages of the other folders.
+     */
+    static List<String> listFolders(Cfg cfg, Store store) throws Exception {
+        boolean         skipAllMail = cfg.asBoolean("mail.folder.skip.all.mail").orElse(Boolean.TRUE);
+        Set<String>     names = new LinkedHashSet<>();
+        for (String pattern : cfg.val("mail.folder").orElse("INBOX").split(",")) {
+            pattern = pattern.trim();
+            if (pattern.isEmpty())
+                continue;
+            Folder[]    folders = pattern.indexOf('*') >= 0 || pattern.indexOf('%') >= 0 ?
+                store.getDefaultFolder().list(pattern) : new Folder[] { store.getFolder(pattern) };
+            for (Folder folder : folders) {
+                if ((folder.getType() & Folder.HOLDS_MESSAGES) == 0)
+                    continue;
+                if (skipAllMail && isAllMailFolder(folder)) {
+                    log.info("Skip the all mail folder " + folder.getFullName());
+                    continue;
+                }
+                names.add(folder.getFullName());
+            }
+        }
+        return new ArrayList<>(names);
     }
 
-    private static boolean waitTerm(ExecutorService w) {
-        try {
-            return w.awaitTermination(1, TimeUnit.SECONDS);
-        } catch(Exception e) {
+    private static boolean isAllMailFolder(Folder folder) throws MessagingException {
+        if (folder.getFullName().equalsIgnoreCase("[Gmail]/All Mail"))
             return true;
+        if (folder instanceof IMAPFolder) {
+            for (String attr : ((IMAPFolder)folder).getAttributes()) {
+                if (attr.equalsIgnoreCase("\\All"))
+                    return true;
+            }
         }
+        return false;
     }
 
-
-    private static Date getReceivedDate(Message msg) {
-        try {
-            return msg.getReceivedDate();
-        } catch(Exception e) {
-            Dbg.error(log, e);
-            return new Date(0);
-        }
+    private static Date parseDate(String dateStr) {
+        dateStr = dateStr.trim().replaceAll("/", "-");
+        return Util.parseDate(dateStr, Util.dateYYYYMMdd(), Util.dateMMddyyyy2());
     }
 
-    private static String getFromName(Message msg) {
+    static long getUIDValidity(Folder mailbox) {
         try {
-            for (Address address : msg.getFrom()) {
-                return address.toString().replaceAll("<.*>", "").trim().replaceAll("^\"|\"$", "").trim();   // remove <xx>, trim, remove "", trim
-            }
+            return mailbox instanceof UIDFolder ? ((UIDFolder)mailbox).getUIDValidity() : 0;
         } catch(Exception e) {
             Dbg.error(log, e);
+            return 0;
         }
-        return "";
     }
 
-    private static String getFromNames(Message msg) {
+    static long getUID(Folder mailbox, Message msg) {
         try {
-            return Util.asStream(msg.getFrom())
-                .map(address -> address.toString().replaceAll("<.*>", "").trim().replaceAll("^\"|\"$", "").trim())
-                .collect(Collectors.joining(";"));
+            return mailbox instanceof UIDFolder ? ((UIDFolder)mailbox).getUID(msg) : 0;
         } catch(Exception e) {
-            return "";
+            return 0;
         }
     }
-    
-    private static final Pattern    ADDRESS_REGEX = Pattern.compile("<(.+?)>");
-    private static String getFromAddress(Message msg) {
-        try {
-            for (Address address : msg.getFrom()) {
-                Matcher matcher = ADDRESS_REGEX.matcher(address.toString());
-                if (matcher.find())
-                    return matcher.group(1).trim();
-                return "";
-            }
-        } catch(Exception e) {}
-        return "";
+
+    // The highest UID in the folder, of its last message.  0 if the folder is empty or has no UIDs.
+    static long getLastUID(Folder mailbox) throws MessagingException {
+        int     count = mailbox.getMessageCount();
+        return count > 0 && mailbox instanceof UIDFolder ? ((UIDFolder)mailbox).getUID(mailbox.getMessage(count)) : 0;
     }
 
-    private static String getFromAddresses(Message msg) {
-        try {
-            return Util.asList(msg.getFrom()).stream()
-                .map(addr -> {
-                        Matcher matcher = ADDRESS_REGEX.matcher(addr.toString());
-                        return matcher.find() ? matcher.group(1).trim() : "";
-                    })
-                .collect(Collectors.joining(";"));
-        } catch(Exception e) {
-            return "";
+    // Get the UIDs of the messages in one FETCH for the ones not known yet.  Null if the folder has no UIDs.
+    static long[] getUIDs(Folder mailbox, Message[] messages) throws MessagingException {
+        if (!(mailbox instanceof UIDFolder))
+            return null;
+        if (messages.length > 0) {
+            FetchProfile    fp = new FetchProfile();
+            fp.add(UIDFolder.FetchProfileItem.UID);
+            mailbox.fetch(messages, fp);
         }
+        long[]      uids = new long[messages.length];
+        for (int i = 0; i < messages.length; i++)
+            uids[i] = ((UIDFolder)mailbox).getUID(messages[i]);
+        return uids;
+    }
+
+    // Get the messages arrived after the last processed UID of the folder.  Empty if there's no UID state
+    // or the UIDVALIDITY of the folder has changed, in which case the date search is used instead.
+    static Optional<Message[]> getMessagesAfterLastUid(Folder mailbox, Cfg state, boolean quiet) throws Exception {
+        if (!(mailbox instanceof UIDFolder))
+            return Optional.empty();
+
+        UIDFolder       uidFolder = (UIDFolder)mailbox;
+        Optional<Long>  lastValidity = state.asLong("download.uidvalidity." + mailbox.getFullName());
+        Optional<Long>  lastUid = state.asLong("download.last.uid." + mailbox.getFullName());
+        if (!lastValidity.isPresent() || !lastUid.isPresent())
+            return Optional.empty();
+        if (lastValidity.get() != uidFolder.getUIDValidity()) {
+            if (!quiet) System.out.println("UIDVALIDITY of " + mailbox.getFullName() + " has changed.  Resume from last download date instead.");
+            return Optional.empty();
+        }
+
+        if (!quiet) System.out.println("Resume from last download UID: " + lastUid.get());
+        Message[]       messages = uidFolder.getMessagesByUID(lastUid.get() + 1, UIDFolder.LASTUID);
+        return Optional.of(Util.asStream(messages)
+                           .filter(msg -> msg != null && getUID(mailbox, msg) > lastUid.get())  // "n:*" always includes the last message.
+                           .toArray(Message[]::new));
     }
 
-    private static String getRecipients(Message msg, Message.RecipientType type) {
-        try {
-            return Util.asList(msg.getRecipients(type)).stream()
-                .map(addr -> addr.toString())
-                .collect(Collectors.joining(";"));
-        } catch(Exception e) {
-            return "";
+    static Optional<SearchTerm> getDateRange(Cfg cfg, Cfg state, String folderName, boolean fromLastDate, boolean quiet) {
+        boolean     resumeFromLast = fromLastDate && cfg.asBoolean("process.resume.from.last").orElse(Boolean.TRUE);
+        Date        downloadLastDate = parseDate(getLastDate(state, folderName).orElse(""));
+        Date        fromDate = parseDate(cfg.val("process.from.date").orElse(""));
+        Date        toDate = parseDate(cfg.val("process.to.date").orElse(""));
+        int         previousDays = cfg.asInt("process.previous.days").orElse(0);
+
+        if (previousDays > 0) {
+            // previousDays overrides fromDate and toDate.
+            toDate = new Date();
+            fromDate = Util.later(fromDate, Util.addDays(toDate, -previousDays));
         }
-    }
 
-    private static String getSubject(Message msg) {
-        try {
-            String subject = msg.getSubject();
-            if (Util.empty(subject))
-                return "";
-            if (subject.startsWith("Re: "))
-                subject = subject.substring(4);
-            return subject.trim();
-        } catch(Exception e) {
-            return "";
+        if (resumeFromLast) {
+            if (!quiet) System.out.println("Resume from last download date: " + (downloadLastDate != null ? Util.dateYYYYMMdd().format(downloadLastDate) : "none"));
+            fromDate = Util.later(fromDate, downloadLastDate);
         }
+
+        if (fromDate != null && toDate != null)
+            return Optional.of(new AndTerm(new ReceivedDateTerm(ComparisonTerm.GE, fromDate),
+                                           new ReceivedDateTerm(ComparisonTerm.LE, toDate)));
+        if (fromDate != null)
+            return Optional.of(new ReceivedDateTerm(ComparisonTerm.GE, fromDate));
+        if (toDate != null)
+            return Optional.of(new ReceivedDateTerm(ComparisonTerm.LE, toDate));
+        return Optional.empty();
+    }
+
+    // The last download date of the folder.  The state saved before the per folder dates has only the one date.
+    private static Optional<String> getLastDate(Cfg state, String folderName) {
+        Optional<String>    lastDate = state.val("download.last.date." + folderName);
+        if (lastDate.isPresent() || state.keySet().stream().anyMatch(key -> key.startsWith("download.last.date.")))
+            return lastDate;
+        return state.val("download.last.date");
     }
 
-    private static String getLowerFilename(BodyPart bp) {
+    static String getLowerFilename(BodyPart bp) {
         try {
             return Util.defval(bp.getFileName(), "").trim().toLowerCase();
         } catch(Exception e) {
@@ -370,56 +391,78 @@ public class MailService {
         }
     }
 
-    private static List<BodyPart> getAttachmentParts(Message message, Cfg cfg, List<BodyPart> attachmentParts) throws Exception {
+    // Collect the attachment parts keyed by their section numbers, e.g. "2", "1.3", as the IMAP section of the part.
+    // Only the MIME structure is walked: a multipart's content is its list of parts, which the IMAP provider builds
+    // from the BODYSTRUCTURE, and the leaves are judged by their headers.  The content of the leaves, e.g. the text
+    // and html bodies, is never fetched.
+    static Map<String, BodyPart> getAttachmentParts(Message message, Cfg cfg, Map<String, BodyPart> attachmentParts) throws Exception {
         boolean downloadInline = cfg.asBoolean("download.inline").orElse(Boolean.FALSE);
-        Object  content = message.getContent();
-        if (!(content instanceof String) && content instanceof Multipart) {
-            Multipart   mp = (Multipart) content;
-            for (int i = 0; i < mp.getCount(); i++) {
-                getAttachmentParts(mp.getBodyPart(i), cfg, attachmentParts);
+        if (message.isMimeType("multipart/*")) {
+            Object  content = message.getContent();
+            if (content instanceof Multipart) {
+                Multipart   mp = (Multipart) content;
+                for (int i = 0; i < mp.getCount(); i++) {
+                    getAttachmentParts(mp.getBodyPart(i), String.valueOf(i + 1), downloadInline, attachmentParts);
+                }
             }
         }
         return attachmentParts;
     }
 
-    private static List<BodyPart> getAttachmentParts(BodyPart part, Cfg cfg, List<BodyPart> attachmentParts) throws Exception {
-        boolean downloadInline = cfg.asBoolean("download.inline").orElse(Boolean.FALSE);
-        Object  content = part.getContent();
-
-        // Handle straight attachment
-        if (content instanceof InputStream || content instanceof String) {
-            if (!Util.empty(part.getFileName()) && (downloadInline || Util.iequals(Part.ATTACHMENT, part.getDisposition()))) {
-                attachmentParts.add(part);
+    static Map<String, BodyPart> getAttachmentParts(BodyPart part, String section, boolean downloadInline, Map<String, BodyPart> attachmentParts) throws Exception {
+        // Handle nested attachments
+        if (part.isMimeType("multipart/*")) {
+            Object  content = part.getContent();
+            if (content instanceof Multipart) {
+                Multipart   mp = (Multipart) content;
+                for (int i = 0; i < mp.getCount(); i++) {
+                    getAttachmentParts(mp.getBodyPart(i), section + "." + (i + 1), downloadInline, attachmentParts);
+                }
             }
             return attachmentParts;
         }
 
-        // Handle nested attachments
-        if (content instanceof Multipart) {
-            Multipart   mp = (Multipart) content;
-            for (int i = 0; i < mp.getCount(); i++) {
-                getAttachmentParts(mp.getBodyPart(i), cfg, attachmentParts);
-            }
-        }
+        // A forwarded message is not an attachment itself.
+        if (part.isMimeType("message/rfc822"))
+            return attachmentParts;
 
+        // Handle straight attachment
+        if (!Util.empty(part.getFileName()) && (downloadInline || Util.iequals(Part.ATTACHMENT, part.getDisposition()))) {
+            attachmentParts.put(section, part);
+        }
         return attachmentParts;
     }
 
+    // Find the part of the section number in the message.
+    static BodyPart resolvePart(Message message, String section) throws Exception {
+        if (message == null)
+            throw new MessagingException("Message not found for section " + section);
+        Object      content = message.getContent();
+        BodyPart    part = null;
+        for (String index : section.split("\\.")) {
+            if (!(content instanceof Multipart))
+                throw new MessagingException("Section " + section + " not found in message.");
+            part = ((Multipart)content).getBodyPart(Integer.parseInt(index) - 1);
+            content = part.isMimeType("multipart/*") ? part.getContent() : null;
+        }
+        return part;
+    }
+
 
-    private static Predicate<Message> subjectContains(String param) {
-        return msg -> getSubject(msg).toLowerCase().indexOf(param) > -1;
+    private static Predicate<MessageView> subjectContains(String param) {
+        return view -> view.lowerSubject().indexOf(param) > -1;
     }
     
-    private static Predicate<Message> fromContains(String param) {
-        return msg -> getFromNames(msg).toLowerCase().indexOf(param) > -1;
+    private static Predicate<MessageView> fromContains(String param) {
+        return view -> view.lowerFromNames().indexOf(param) > -1;
     }
     
-    private static Predicate<Message> addressContains(String param) {
-        return msg -> getFromAddresses(msg).toLowerCase().indexOf(param) > -1;
+    private static Predicate<MessageView> addressContains(String param) {
+        return view -> view.lowerFromAddresses().indexOf(param) > -1;
     }
 
-    private static Predicate<Message> recipientsContains(String param, Message.RecipientType type) {
-        return msg -> getRecipients(msg, type).indexOf(param) > -1;
+    private static Predicate<MessageView> recipientsContains(String param, Message.RecipientType type) {
+        return view -> view.lowerRecipients(type).indexOf(param) > -1;
     }
 
     private static Predicate<BodyPart> fileNameContains(String pattern) {
@@ -430,31 +473,61 @@ public class MailService {
         return bp -> getLowerFilename(bp).endsWith(pattern);
     }
 
+    // The size of a part is its size in the BODYSTRUCTURE, known without fetching the content.
     private static Predicate<BodyPart> fileSizeLess(String param) {
-        return bp -> getFileSize(bp) <= Util.parseByteSize(param, 0);
+        long    size = Util.parseByteSize(param, 0);
+        return bp -> getFileSize(bp) <= size;
     }
 
     private static Predicate<BodyPart> fileSizeGreater(String param) {
-        return bp -> getFileSize(bp) >= Util.parseByteSize(param, 0);
+        long    size = Util.parseByteSize(param, 0);
+        return bp -> getFileSize(bp) >= size;
     }
 
-    private static Predicate<Message> buildMailMatchers(Cfg cfg) {
+    // The server-side counterpart of buildMailMatchers.  The server narrows down the candidate mails in SEARCH;
+    // the mail matchers still verify them on the client since servers differ in how they match.
+    static Optional<SearchTerm> buildMailSearchTerms(Cfg cfg) {
+        if (!cfg.asBoolean("process.server.search").orElse(Boolean.TRUE))
+            return Optional.empty();
 
-        Optional<Predicate<Message>>    subjectMatcher = cfg.asLowerCase("match.subject.contains").map(param -> subjectContains(param));
-        Optional<Predicate<Message>>    fromMatcher    = cfg.asLowerCase("match.from.contains").map(param -> fromContains(param));
-        Optional<Predicate<Message>>    addressMatcher = cfg.asLowerCase("match.address.contains").map(param -> addressContains(param));
+        Optional<SearchTerm>            subjectTerm = cfg.asLowerCase("match.subject.contains").map(param -> new SubjectTerm(param));
+        Optional<SearchTerm>            fromTerm    = cfg.asLowerCase("match.from.contains").map(param -> new FromStringTerm(param));
+        Optional<SearchTerm>            addressTerm = cfg.asLowerCase("match.address.contains").map(param -> new FromStringTerm(param));
 
-        Optional<Predicate<Message>>    toMatcher = cfg.asLowerCase("match.to.contains").map(param -> recipientsContains(param, Message.RecipientType.TO));
-        Optional<Predicate<Message>>    ccMatcher = cfg.asLowerCase("match.cc.contains").map(param -> recipientsContains(param, Message.RecipientType.CC));
-        Optional<Predicate<Message>>    bccMatcher = cfg.asLowerCase("match.bcc.contains").map(param -> recipientsContains(param, Message.RecipientType.BCC));
-        Stream<Predicate<Message>>      recipientMatchers = Util.flatOptionals(Util.asStream(toMatcher, ccMatcher, bccMatcher));
-        Optional<Predicate<Message>>    recipientMatcher = recipientMatchers.reduce(Predicate::or); // OR the conditional parts.
+        Optional<SearchTerm>            toTerm = cfg.asLowerCase("match.to.contains").map(param -> new RecipientStringTerm(Message.RecipientType.TO, param));
+        Optional<SearchTerm>            ccTerm = cfg.asLowerCase("match.cc.contains").map(param -> new RecipientStringTerm(Message.RecipientType.CC, param));
+        Optional<SearchTerm>            bccTerm = cfg.asLowerCase("match.bcc.contains").map(param -> new RecipientStringTerm(Message.RecipientType.BCC, param));
+        Optional<SearchTerm>            recipientTerm = Util.flatOptionals(Util.asStream(toTerm, ccTerm, bccTerm)).reduce(OrTerm::new);
+
+        return Util.flatOptionals(Util.asStream(subjectTerm, fromTerm, addressTerm, recipientTerm)).reduce(AndTerm::new);
+    }
+
+    // Only a message larger than match.file.size.greater.than can hold a file that large, since RFC822.SIZE,
+    // like the part size the file matcher checks, counts the encoded bytes.  The server prunes the smaller messages.
+    static Optional<SearchTerm> buildSizeSearchTerm(Cfg cfg) {
+        return cfg.val("match.file.size.greater.than")
+            .map(param -> Util.parseByteSize(param, 0))
+            .filter(size -> size > 1)
+            .map(size -> new SizeTerm(ComparisonTerm.GT, (int)Math.min(size - 1, Integer.MAX_VALUE)));
+    }
+
+    static Predicate<MessageView> buildMailMatchers(Cfg cfg) {
+
+        Optional<Predicate<MessageView>>    subjectMatcher = cfg.asLowerCase("match.subject.contains").map(param -> subjectContains(param));
+        Optional<Predicate<MessageView>>    fromMatcher    = cfg.asLowerCase("match.from.contains").map(param -> fromContains(param));
+        Optional<Predicate<MessageView>>    addressMatcher = cfg.asLowerCase("match.address.contains").map(param -> addressContains(param));
+
+        Optional<Predicate<MessageView>>    toMatcher = cfg.asLowerCase("match.to.contains").map(param -> recipientsContains(param, Message.RecipientType.TO));
+        Optional<Predicate<MessageView>>    ccMatcher = cfg.asLowerCase("match.cc.contains").map(param -> recipientsContains(param, Message.RecipientType.CC));
+        Optional<Predicate<MessageView>>    bccMatcher = cfg.asLowerCase("match.bcc.contains").map(param -> recipientsContains(param, Message.RecipientType.BCC));
+        Stream<Predicate<MessageView>>      recipientMatchers = Util.flatOptionals(Util.asStream(toMatcher, ccMatcher, bccMatcher));
+        Optional<Predicate<MessageView>>    recipientMatcher = recipientMatchers.reduce(Predicate::or); // OR the conditional parts.
         
-        Stream<Predicate<Message>>      matchers = Util.flatOptionals(Util.asStream(subjectMatcher, fromMatcher, addressMatcher, recipientMatcher));
-        return matchers.reduce(Predicate::and).orElse(msg -> true); // combine with AND, or always matched for empty list.
+        Stream<Predicate<MessageView>>      matchers = Util.flatOptionals(Util.asStream(subjectMatcher, fromMatcher, addressMatcher, recipientMatcher));
+        return matchers.reduce(Predicate::and).orElse(view -> true); // combine with AND, or always matched for empty list.
     }
 
-    private static Predicate<BodyPart> buildFileMatchers(Cfg cfg) {
+    static Predicate<BodyPart> buildFileMatchers(Cfg cfg) {
         Optional<Stream<Predicate<BodyPart>>>   nameMatchers = cfg.val("match.file.name.contains").map(
             param -> Util.splitParts(param, ",").map(part -> fileNameContains(part)) );
         Optional<Predicate<BodyPart>>           nameMatcher = nameMatchers.map(s -> s.reduce(Predicate::or).get());  // OR the conditional parts.
@@ -478,34 +551,42 @@ public class MailService {
         return Util.maxStr(str, MAX_CHAR).trim();
     }
     
-    private static Path resolveDownloadPath(List<Function<Message, Path>> pathers, Path basePath, Message msg) {
+    static Path resolveDownloadPath(List<Function<MessageView, Path>> pathers, Path basePath, MessageView view) {
         return pathers.stream()
-            .map(f -> f.apply(msg))
+            .map(f -> f.apply(view))
             .reduce(basePath, (acc, path) -> acc.resolve(path));
     }
 
-    private static List<Function<Message, Path>> buildGroupbyPathers(Cfg cfg) {
+    static List<Function<MessageView, Path>> buildGroupbyPathers(Cfg cfg) {
         return Util.asList("download.groupby", "download.groupby.2nd", "download.groupby.3rd")
             .stream().map(gb -> groupbyToPathers(cfg.val(gb).orElse("none"))).collect(Collectors.toList());
     }
 
-    private static Function<Message, Path> groupbyToPathers(String groupby) {
+    /** The number of directory levels the groupby settings add under the download directory. */
+    static int groupbyLevels(Cfg cfg) {
+        return (int)Util.asList("download.groupby", "download.groupby.2nd", "download.groupby.3rd")
+            .stream().map(gb -> cfg.val(gb).orElse("none"))
+            .filter(gb -> Util.asList("date", "month", "year", "from", "address", "subject").stream().anyMatch(level -> Util.iequals(level, gb)))
+            .count();
+    }
+
+    private static Function<MessageView, Path> groupbyToPathers(String groupby) {
         if (Util.iequals(groupby, "none")) {
-            return msg -> Paths.get("");
+            return view -> Paths.get("");
         } else if (Util.iequals(groupby, "date")) {
-            return msg -> Paths.get(Util.dateYYYYMMdd().format(getReceivedDate(msg)));
+            return view -> Paths.get(Util.dateYYYYMMdd().format(view.receivedDate()));
         } else if (Util.iequals(groupby, "month")) {
-            return msg -> Paths.get(Util.dateYYYYMM().format(getReceivedDate(msg)));
+            return view -> Paths.get(Util.dateYYYYMM().format(view.receivedDate()));
         } else if (Util.iequals(groupby, "year")) {
-            return msg -> Paths.get(Util.dateYYYY().format(getReceivedDate(msg)));
+            return view -> Paths.get(Util.dateYYYY().format(view.receivedDate()));
         } else if (Util.iequals(groupby, "from")) {
-            return msg -> Paths.get(Util.defval(getFromName(msg), "NONE"));
+            return view -> Paths.get(Util.defval(view.fromName(), "NONE"));
         } else if (Util.iequals(groupby, "address")) {
-            return msg -> Paths.get(Util.defval(getFromAddress(msg), "NOADDRESS"));
+            return view -> Paths.get(Util.defval(view.fromAddress(), "NOADDRESS"));
         } else if (Util.iequals(groupby, "subject")) {
-            return msg -> Paths.get(Util.defval(pathFriendly(getSubject(msg)), "NOSUBJECT"));
+            return view -> Paths.get(Util.defval(pathFriendly(view.subject()), "NOSUBJECT"));
         } else {
-            return msg -> Paths.get("");
+            return view -> Paths.get("");
         }
     }
 
@@ -0,0 +1,195 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: FetchMailAtt
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2015 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+package fetchmailatt;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import javax.mail.*;
+import javax.mail.internet.*;
+import javax.mail.util.SharedByteArrayInputStream;
+
+
+/**
+ * Local source of messages, read from an archive on disk instead of a mail server: an mbox file or a directory of them,
+ * a Maildir, or a directory tree of .eml files.  The folders of the source take the place of the mailbox folders.
+ * The entries of a folder are listed cheaply up front and parsed into messages on load(), which is thread safe.
+ * The content of the large files is memory-mapped and parsed in place, without copying it onto the heap.
+ */
+public abstract class MailSource {
+
+    static final long   MAP_THRESHOLD = 1024 * 1024;    // smaller files are read into memory; mapping them costs more than reading.
+
+    /** A message of the source, not parsed yet. */
+    public static abstract class Entry {
+        final int       msgNum;
+
+        Entry(int msgNum) {
+            this.msgNum = msgNum;
+        }
+
+        public abstract Message load(Session session) throws Exception;
+    }
+
+    /** The mbox, maildir or eml source of mail.source at mail.source.path, or null to read from the mail server. */
+    public static MailSource open(Cfg cfg) throws IOException {
+        Optional<String>    type = cfg.asLowerCase("mail.source");
+        if (!type.isPresent() || type.get().equals("imap"))
+            return null;
+        Path                path = Paths.get(cfg.ensure("mail.source.path"));
+        if (!Files.exists(path))
+            throw new FileNotFoundException("mail.source.path " + path + " does not exist.");
+        switch (type.get()) {
+        case "mbox":    return new MboxSource(path);
+        case "maildir": return new MaildirSource(path);
+        case "eml":     return new EmlSource(path);
+        default:        throw new IllegalArgumentException("Unknown mail.source " + type.get() + ", it can be mbox, maildir, or eml.");
+        }
+    }
+
+    public abstract List<String> folders() throws IOException;
+
+    /** The entries of the folder, in the order of arrival. */
+    public abstract List<Entry> list(String folder) throws IOException;
+
+
+    /** A message in its own file.  Without a receivedDate, the Date header or else the file time is used. */
+    static class FileEntry extends Entry {
+        private final Path  file;
+        private final Date  receivedDate;
+
+        FileEntry(int msgNum, Path file, Date receivedDate) {
+            super(msgNum);
+            this.file = file;
+            this.receivedDate = receivedDate;
+        }
+
+        public Message load(Session session) throws Exception {
+            try (InputStream in = openFile(file)) {
+                return new LocalMessage(session, in, msgNum, receivedDate, lastModified(file));
+            }
+        }
+
+        public String toString() {
+            return file.toString();
+        }
+    }
+
+    /** Message parsed from a local file.  A local message has no INTERNALDATE; the source tells when it was received. */
+    static class LocalMessage extends MimeMessage {
+        private final Date  receivedDate;
+
+        /** Parse the message from in.  The receivedDate falls back to the Date header, then to defaultDate. */
+        LocalMessage(Session session, InputStream in, int msgNum, Date receivedDate, Date defaultDate) throws MessagingException {
+            super(session, in);
+            setMessageNumber(msgNum);
+            this.receivedDate = receivedDate != null ? receivedDate : Util.defval(getSentDate(), defaultDate);
+        }
+
+        @Override
+        public Date getReceivedDate() {
+            return receivedDate;
+        }
+    }
+
+    // Open the file for parsing, mapped if large.
+    static InputStream openFile(Path file) throws IOException {
+        long    size = Files.size(file);
+        if (size < MAP_THRESHOLD)
+            return new SharedByteArrayInputStream(Files.readAllBytes(file));
+        return new BufferInputStream(map(file, 0, size));
+    }
+
+    // The mapping stays valid after the channel is closed, until the buffer is garbage collected.
+    static MappedByteBuffer map(Path file, long position, long size) throws IOException {
+        if (size > Integer.MAX_VALUE)
+            throw new IOException("Cannot map more than 2GB at once, at " + position + " of " + file);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+        }
+    }
+
+    static Date lastModified(Path file) {
+        try {
+            return new Date(Files.getLastModifiedTime(file).toMillis());
+        } catch(IOException e) {
+            return new Date(0);
+        }
+    }
+
+    /**
+     * Stream over a buffer, usually a slice of a mapped file.  As a SharedInputStream, the MIME parser takes the
+     * content of the message and its parts as sub-streams of the buffer instead of copying them.
+     */
+    static class BufferInputStream extends InputStream implements SharedInputStream {
+        private final ByteBuffer    buf;
+        private int                 mark;
+
+        BufferInputStream(ByteBuffer buf) {
+            this.buf = buf.slice();
+        }
+
+        public int read() {
+            return buf.hasRemaining() ? buf.get() & 0xFF : -1;
+        }
+
+        public int read(byte[] b, int off, int len) {
+            if (len == 0)
+                return 0;
+            if (!buf.hasRemaining())
+                return -1;
+            len = Math.min(len, buf.remaining());
+            buf.get(b, off, len);
+            return len;
+        }
+
+        public long skip(long n) {
+            int     count = (int)Math.max(Math.min(n, buf.remaining()), 0);
+            buf.position(buf.position() + count);
+            return count;
+        }
+
+        public int available() {
+            return buf.remaining();
+        }
+
+        public boolean markSupported() {
+            return true;
+        }
+
+        public void mark(int readlimit) {
+            mark = buf.position();
+        }
+
+        public void reset() {
+            buf.position(mark);
+        }
+
+        public long getPosition() {
+            return buf.position();
+        }
+
+        public InputStream newStream(long start, long end) {
+            ByteBuffer  dup = buf.duplicate();
+            dup.limit(end < 0 ? buf.limit() : (int)end);
+            dup.position((int)start);
+            return new BufferInputStream(dup);
+        }
+    }
+
+}
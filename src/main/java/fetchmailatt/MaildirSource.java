@@ -0,0 +1,78 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: FetchMailAtt
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2015 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+package fetchmailatt;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.*;
+
+
+/**
+ * Maildir, one message per file in the cur and new directories.  The root is the INBOX folder; the Maildir++
+ * subfolders, the .Name directories, are the Name folders.  A message is received at the time its file name starts with.
+ */
+public class MaildirSource extends MailSource {
+
+    private final Path                  root;
+    private final Map<String, Path>     dirs = new LinkedHashMap<>();
+
+    public MaildirSource(Path root) throws IOException {
+        this.root = root;
+        dirs.put("INBOX", root);
+        try (Stream<Path> paths = Files.list(root)) {
+            paths.filter(p -> p.getFileName().toString().startsWith(".") && Files.isDirectory(p.resolve("cur")))
+                .sorted()
+                .forEach(p -> dirs.put(p.getFileName().toString().substring(1), p));
+        }
+    }
+
+    public List<String> folders() {
+        return new ArrayList<>(dirs.keySet());
+    }
+
+    public List<Entry> list(String folder) throws IOException {
+        Path        dir = dirs.get(folder);
+        if (dir == null)
+            throw new FileNotFoundException("No Maildir folder " + folder + " in " + root);
+        List<Path>  files = new ArrayList<>();
+        for (String sub : new String[] { "cur", "new" }) {
+            if (!Files.isDirectory(dir.resolve(sub)))
+                continue;
+            try (Stream<Path> paths = Files.list(dir.resolve(sub))) {
+                paths.filter(Files::isRegularFile).forEach(files::add);
+            }
+        }
+        files.sort(Comparator.comparingLong((Path p) -> deliveryTime(p)).thenComparing(p -> p.getFileName().toString()));
+
+        List<Entry> entries = new ArrayList<>(files.size());
+        for (Path file : files)
+            entries.add(new FileEntry(entries.size() + 1, file, deliveryTime(file) > 0 ? new Date(deliveryTime(file) * 1000) : null));
+        return entries;
+    }
+
+    // The seconds since the epoch at the start of the unique name, e.g. 1436339314.M51P2.host:2,S
+    private static long deliveryTime(Path file) {
+        String  name = file.getFileName().toString();
+        int     dot = name.indexOf('.');
+        try {
+            return dot > 0 ? Long.parseLong(name.substring(0, dot)) : 0;
+        } catch(NumberFormatException e) {
+            return 0;
+        }
+    }
+
+}
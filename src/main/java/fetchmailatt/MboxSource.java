@@ -0,0 +1,194 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: FetchMailAtt
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2015 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+package fetchmailatt;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.text.*;
+import java.util.*;
+import java.util.logging.*;
+import java.util.stream.*;
+import javax.mail.*;
+
+
+/**
+ * mbox files, the path being one file or a directory of them, each file a folder named by its relative path.
+ * A file is memory-mapped and split on the "From " lines following a blank line, scanning its ranges in parallel.
+ * The messages are then mapped in segments of up to 1GB and parsed in place.  The >From quoting of the body lines
+ * is left as is; it does not touch the encoded attachments.
+ */
+public class MboxSource extends MailSource {
+    private static final Logger log = Logger.getLogger(MboxSource.class.getName());
+
+    private static final long   SEGMENT_SIZE = 1L << 30;
+    private static final long   MIN_SCAN_RANGE = 1024 * 1024;
+    private static final byte[] FROM = "From ".getBytes(StandardCharsets.ISO_8859_1);
+
+    private static final String[]   FROM_LINE_DATES = { "EEE MMM d HH:mm:ss yyyy", "EEE MMM d HH:mm:ss Z yyyy", "EEE MMM d HH:mm:ss yyyy Z" };
+    private static final TlsCache<String, SimpleDateFormat> sFormatCache = new TlsCache<>("MboxDateFormat", (key, params) -> new SimpleDateFormat(key, Locale.US));
+
+    private final Path                  root;
+    private final Map<String, Path>     files = new LinkedHashMap<>();
+
+    public MboxSource(Path root) throws IOException {
+        this.root = root;
+        if (Files.isDirectory(root)) {
+            try (Stream<Path> paths = Files.walk(root)) {
+                paths.filter(Files::isRegularFile)
+                    .filter(p -> !p.getFileName().toString().startsWith(".") && !p.getFileName().toString().endsWith(".msf"))   // skip the index files of Thunderbird.
+                    .sorted()
+                    .forEach(p -> files.put(root.relativize(p).toString().replace(File.separatorChar, '/'), p));
+            }
+        } else {
+            files.put(root.getFileName().toString(), root);
+        }
+    }
+
+    public List<String> folders() {
+        return new ArrayList<>(files.keySet());
+    }
+
+    public List<Entry> list(String folder) throws IOException {
+        Path            file = files.get(folder);
+        if (file == null)
+            throw new FileNotFoundException("No mbox file " + folder + " in " + root);
+        long            size = Files.size(file);
+        List<Long>      starts = findMessageStarts(file, size);
+        List<Entry>     entries = new ArrayList<>(starts.size());
+        Date            fileDate = lastModified(file);
+        if (starts.isEmpty() && size > 0)
+            log.warning(file + " has no \"From \" line, not an mbox file.");
+
+        // Group the consecutive messages into segments, each mapped once.
+        for (int i = 0; i < starts.size(); ) {
+            long        segStart = starts.get(i);
+            int         j = i + 1;
+            while (j < starts.size() && end(starts, j, size) - segStart <= SEGMENT_SIZE)
+                j++;
+            ByteBuffer  segment = map(file, segStart, end(starts, j - 1, size) - segStart);
+            for (int k = i; k < j; k++)
+                entries.add(new MboxEntry(k + 1, segment, (int)(starts.get(k) - segStart), (int)(end(starts, k, size) - starts.get(k)), fileDate));
+            i = j;
+        }
+        return entries;
+    }
+
+    private static long end(List<Long> starts, int index, long size) {
+        return index + 1 < starts.size() ? starts.get(index + 1) : size;
+    }
+
+    // The offsets of the "From " lines, at the file start or after a blank line.  The ranges of the file are
+    // scanned in parallel, each mapping a few bytes before and after to see the boundaries across the ranges.
+    static List<Long> findMessageStarts(Path file, long size) throws IOException {
+        int         cores = Runtime.getRuntime().availableProcessors();
+        long        rangeSize = Math.min(Math.max((size + cores - 1) / cores, MIN_SCAN_RANGE), SEGMENT_SIZE);
+        int         ranges = (int)((size + rangeSize - 1) / rangeSize);
+        try {
+            return IntStream.range(0, ranges).parallel()
+                .mapToObj(r -> {
+                        try {
+                            return scanRange(file, size, r * rangeSize, Math.min((r + 1) * rangeSize, size));
+                        } catch(IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    })
+                .flatMap(List::stream)
+                .collect(Collectors.toList());
+        } catch(UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static List<Long> scanRange(Path file, long size, long start, long end) throws IOException {
+        long        mapStart = Math.max(start - 3, 0);
+        ByteBuffer  buf = map(file, mapStart, Math.min(end + FROM.length, size) - mapStart);
+        List<Long>  starts = new ArrayList<>();
+        int         limit = (int)(end - mapStart);
+        for (int i = (int)(start - mapStart); i < limit; i++) {
+            if (i + mapStart == 0 ? isFromLine(buf, i) : buf.get(i - 1) == '\n' && isFromLine(buf, i) && afterBlankLine(buf, i - 1))
+                starts.add(mapStart + i);
+        }
+        return starts;
+    }
+
+    private static boolean isFromLine(ByteBuffer buf, int pos) {
+        if (pos + FROM.length > buf.limit())
+            return false;
+        for (int k = 0; k < FROM.length; k++) {
+            if (buf.get(pos + k) != FROM[k])
+                return false;
+        }
+        return true;
+    }
+
+    // Whether the newline at pos ends an empty line, "\n\n" or "\n\r\n".
+    private static boolean afterBlankLine(ByteBuffer buf, int pos) {
+        if (pos >= 1 && buf.get(pos - 1) == '\n')
+            return true;
+        return pos >= 2 && buf.get(pos - 1) == '\r' && buf.get(pos - 2) == '\n';
+    }
+
+    // The date of the "From sender date" line, in the asctime format with an optional time zone.
+    static Date parseFromLineDate(String line) {
+        String[]    tokens = line.trim().split("\\s+", 3);
+        if (tokens.length < 3)
+            return null;
+        String      date = tokens[2];
+        for (String format : FROM_LINE_DATES) {
+            try {
+                return sFormatCache.val(format).parse(date);
+            } catch(ParseException ignored) {}
+        }
+        return null;
+    }
+
+    private static class MboxEntry extends Entry {
+        private final ByteBuffer    segment;
+        private final int           offset;
+        private final int           length;
+        private final Date          fileDate;
+
+        MboxEntry(int msgNum, ByteBuffer segment, int offset, int length, Date fileDate) {
+            super(msgNum);
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.fileDate = fileDate;
+        }
+
+        public Message load(Session session) throws Exception {
+            ByteBuffer  buf = segment.duplicate();
+            int         lineEnd = offset;
+            int         end = offset + length;
+            while (lineEnd < end && buf.get(lineEnd) != '\n')
+                lineEnd++;
+            byte[]      fromLine = new byte[lineEnd - offset];
+            buf.position(offset);
+            buf.get(fromLine);
+            buf.limit(end);
+            buf.position(Math.min(lineEnd + 1, end));
+            return new LocalMessage(session, new BufferInputStream(buf), msgNum,
+                                    parseFromLineDate(new String(fromLine, StandardCharsets.ISO_8859_1)), fileDate);
+        }
+
+        public String toString() {
+            return "mbox message #" + msgNum;
+        }
+    }
+
+}
@@ -0,0 +1,163 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: FetchMailAtt
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2015 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+package fetchmailatt;
+
+import java.util.*;
+import java.util.logging.*;
+import java.util.regex.*;
+import javax.mail.*;
+
+
+/**
+ * The header fields of a message used by the matchers, the groupby pathers and the logging, each parsed on first use
+ * and kept, with its lower case for the matchers.  The From header is parsed once for both the names and the addresses.
+ * Not thread safe; a view is used by one stage at a time, handed over through the stage queues.
+ */
+public class MessageView {
+    private static final Logger log = Logger.getLogger(MessageView.class.getName());
+
+    private static final Pattern    ADDRESS_REGEX = Pattern.compile("<(.+?)>");
+    private static final Pattern    ANGLE_ADDR_REGEX = Pattern.compile("<.*>");
+    private static final Pattern    QUOTES_REGEX = Pattern.compile("^\"|\"$");
+
+    private final Message   msg;
+    private Date            receivedDate;
+    private String[]        fromNames;
+    private String[]        fromAddresses;
+    private String          lowerFromNames;
+    private String          lowerFromAddresses;
+    private String          subject;
+    private String          lowerSubject;
+    private String          lowerTo;
+    private String          lowerCc;
+    private String          lowerBcc;
+
+    public MessageView(Message msg) {
+        this.msg = msg;
+    }
+
+    public Message message() {
+        return msg;
+    }
+
+    public Date receivedDate() {
+        if (receivedDate == null) {
+            try {
+                receivedDate = msg.getReceivedDate();
+            } catch(Exception e) {
+                Dbg.error(log, e);
+            }
+            if (receivedDate == null)
+                receivedDate = new Date(0);
+        }
+        return receivedDate;
+    }
+
+    /** The name of the first sender, without the address and the quotes. */
+    public String fromName() {
+        parseFrom();
+        return fromNames.length > 0 ? fromNames[0] : "";
+    }
+
+    /** The address of the first sender, or empty if it has no <address> part. */
+    public String fromAddress() {
+        parseFrom();
+        return fromAddresses.length > 0 ? fromAddresses[0] : "";
+    }
+
+    /** The names of all the senders, separated by ;, in lower case. */
+    public String lowerFromNames() {
+        if (lowerFromNames == null) {
+            parseFrom();
+            lowerFromNames = String.join(";", fromNames).toLowerCase();
+        }
+        return lowerFromNames;
+    }
+
+    public String lowerFromAddresses() {
+        if (lowerFromAddresses == null) {
+            parseFrom();
+            lowerFromAddresses = String.join(";", fromAddresses).toLowerCase();
+        }
+        return lowerFromAddresses;
+    }
+
+    /** The subject without the leading "Re: ". */
+    public String subject() {
+        if (subject == null) {
+            try {
+                subject = Util.defval(msg.getSubject(), "");
+            } catch(Exception e) {
+                subject = "";
+            }
+            if (subject.startsWith("Re: "))
+                subject = subject.substring(4);
+            subject = subject.trim();
+        }
+        return subject;
+    }
+
+    public String lowerSubject() {
+        if (lowerSubject == null)
+            lowerSubject = subject().toLowerCase();
+        return lowerSubject;
+    }
+
+    /** The recipients of the type, separated by ;, in lower case. */
+    public String lowerRecipients(Message.RecipientType type) {
+        if (type == Message.RecipientType.TO)
+            return lowerTo != null ? lowerTo : (lowerTo = recipients(type));
+        if (type == Message.RecipientType.CC)
+            return lowerCc != null ? lowerCc : (lowerCc = recipients(type));
+        return lowerBcc != null ? lowerBcc : (lowerBcc = recipients(type));
+    }
+
+    private String recipients(Message.RecipientType type) {
+        try {
+            Address[]       addresses = msg.getRecipients(type);
+            if (addresses == null)
+                return "";
+            StringJoiner    joiner = new StringJoiner(";");
+            for (Address address : addresses)
+                joiner.add(address.toString());
+            return joiner.toString().toLowerCase();
+        } catch(Exception e) {
+            return "";
+        }
+    }
+
+    private void parseFrom() {
+        if (fromNames != null)
+            return;
+        Address[]   addresses = null;
+        try {
+            addresses = msg.getFrom();
+        } catch(Exception e) {
+            Dbg.error(log, e);
+        }
+        if (addresses == null)
+            addresses = new Address[0];
+        fromNames = new String[addresses.length];
+        fromAddresses = new String[addresses.length];
+        for (int i = 0; i < addresses.length; i++) {
+            String  str = addresses[i].toString();
+            Matcher matcher = ADDRESS_REGEX.matcher(str);
+            fromAddresses[i] = matcher.find() ? matcher.group(1).trim() : "";
+            fromNames[i] = QUOTES_REGEX.matcher(ANGLE_ADDR_REGEX.matcher(str).replaceAll("").trim()).replaceAll("").trim();   // remove <xx>, trim, remove "", trim
+        }
+    }
+
+}
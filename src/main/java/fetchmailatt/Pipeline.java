@@ -0,0 +1,190 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: FetchMailAtt
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2015 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+package fetchmailatt;
+
+import java.util.*;
+import java.util.logging.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+
+/**
+ * Processing stages connected by bounded queues.  Each stage has its own threads taking items from its queue;
+ * a stage hands its output to the next stage by putting it on that stage's queue, blocking when it's full.
+ * Closing the pipeline drains the stages in the order they were created.
+ */
+public class Pipeline {
+    private static final Logger log = Logger.getLogger(Pipeline.class.getName());
+
+    public static interface Handler<T> {
+        public void handle(T item) throws Exception;
+    }
+
+    /** Throughput and queue occupancy of a stage. */
+    public static class StageStats {
+        public final String     name;
+        public final int        threads;
+        public final long       processed;
+        public final long       errors;
+        public final double     busy;           // fraction of thread time spent on items
+        public final double     avgQueue;       // average queue length seen by the arriving items
+        public final long       maxQueue;
+
+        public StageStats(String name, int threads, long processed, long errors, double busy, double avgQueue, long maxQueue) {
+            this.name = name;
+            this.threads = threads;
+            this.processed = processed;
+            this.errors = errors;
+            this.busy = busy;
+            this.avgQueue = avgQueue;
+            this.maxQueue = maxQueue;
+        }
+    }
+
+    public class Stage<T> {
+        private final String                name;
+        private final Handler<T>            handler;
+        private final BlockingQueue<Optional<T>>    queue;     // empty for the end of the items.
+        private final List<Thread>          threads = new ArrayList<>();
+        private final LongAdder             processed = new LongAdder();
+        private final LongAdder             errors = new LongAdder();
+        private final LongAdder             busyNanos = new LongAdder();
+        private final LongAdder             queueSum = new LongAdder();
+        private final LongAccumulator       queueMax = new LongAccumulator(Math::max, 0);
+        private final long                  startNS = System.nanoTime();
+        private int                         inFlight;           // queued or being handled, guarded by this.
+
+        private Stage(String name, int threadCount, int capacity, Handler<T> handler) {
+            this.name = name;
+            this.handler = handler;
+            this.queue = new LinkedBlockingQueue<>(Math.max(capacity, 1));
+            for (int i = 0; i < Math.max(threadCount, 1); i++) {
+                Thread  t = new Thread(this::runLoop, name + "-" + (i + 1));
+                threads.add(t);
+                t.start();
+            }
+        }
+
+        public void put(T item) throws InterruptedException {
+            int     size = queue.size();
+            queueSum.add(size);
+            queueMax.accumulate(size);
+            synchronized(this) {
+                inFlight++;
+            }
+            queue.put(Optional.of(item));
+        }
+
+        public int queueDepth() {
+            return queue.size();
+        }
+
+        private void runLoop() {
+            try {
+                while (true) {
+                    Optional<T> item = queue.take();
+                    if (!item.isPresent())
+                        return;
+                    long    startNS = System.nanoTime();
+                    try {
+                        handler.handle(item.get());
+                    } catch(Exception e) {
+                        errors.increment();
+                        Dbg.error(log, "Stage " + name + " failed", e);
+                    } finally {
+                        processed.increment();
+                        busyNanos.add(System.nanoTime() - startNS);
+                        synchronized(this) {
+                            inFlight--;
+                            notifyAll();
+                        }
+                    }
+                }
+            } catch(InterruptedException e) {
+                // aborted
+            }
+        }
+
+        private synchronized void awaitIdle() throws InterruptedException {
+            while (inFlight > 0)
+                wait();
+        }
+
+        private void close() throws InterruptedException {
+            for (int i = 0; i < threads.size(); i++)
+                queue.put(Optional.empty());
+            for (Thread t : threads)
+                t.join();
+        }
+
+        private void abort() {
+            queue.clear();
+            threads.forEach(Thread::interrupt);
+        }
+
+        public StageStats stats() {
+            long    count = processed.sum();
+            double  elapsed = Math.max(System.nanoTime() - startNS, 1) * threads.size();
+            return new StageStats(name, threads.size(), count, errors.sum(), busyNanos.sum() / elapsed,
+                                  count == 0 ? 0 : (double)queueSum.sum() / count, queueMax.get());
+        }
+    }
+
+    private final List<Stage<?>>    stages = new ArrayList<>();
+
+    /** Add a stage running handler on threadCount threads, taking items from a queue of the capacity. */
+    public synchronized <T> Stage<T> stage(String name, int threadCount, int capacity, Handler<T> handler) {
+        Stage<T>    stage = new Stage<>(name, threadCount, capacity, handler);
+        stages.add(stage);
+        return stage;
+    }
+
+    /** Wait for each stage in turn to finish its queued items, keeping the stages running. */
+    public void awaitIdle() throws InterruptedException {
+        List<Stage<?>>  list;
+        synchronized(this) {
+            list = new ArrayList<>(stages);
+        }
+        for (Stage<?> stage : list)
+            stage.awaitIdle();
+    }
+
+    /** Wait for each stage in turn to finish its queued items, then stop its threads. */
+    public synchronized void close() throws InterruptedException {
+        for (Stage<?> stage : stages)
+            stage.close();
+    }
+
+    /** Stop all stages without processing the queued items. */
+    public synchronized void abort() {
+        stages.forEach(Stage::abort);
+    }
+
+    public synchronized List<StageStats> stats() {
+        List<StageStats>    list = new ArrayList<>();
+        stages.forEach(stage -> list.add(stage.stats()));
+        return list;
+    }
+
+    public static void printStats(List<StageStats> list, double durationSec) {
+        System.out.println(String.format("  %-12s %7s %9s %9s %7s %7s %9s %9s", "stage", "threads", "items", "items/s", "errors", "busy", "avg.queue", "max.queue"));
+        for (StageStats s : list) {
+            System.out.println(String.format("  %-12s %7d %9d %9.1f %7d %6.1f%% %9.1f %9d", s.name, s.threads, s.processed,
+                                             s.processed / Math.max(durationSec, 0.001), s.errors, s.busy * 100, s.avgQueue, s.maxQueue));
+        }
+    }
+
+}
@@ -0,0 +1,170 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: FetchMailAtt
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2015 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+package fetchmailatt;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+
+
+/**
+ * Append-only journal of the progress of a run, so that a run cut short loses little of it.  Each finalized part appends
+ * a "P folder uidvalidity uid section" line, and each advance of a folder's watermark, the UID up to which all the
+ * enumerated messages are done, a "W folder uidvalidity uid yyyy-MM-dd" line.  The lines are buffered and written with one
+ * fsync per sync interval (group commit), so a crash loses at most the last interval.  The next run replays the journal:
+ * the watermarks into the saved state and the parts into a set to skip.  A completed run compacts it into the state file.
+ */
+public class ProgressJournal implements Closeable {
+    private static final Logger log = Logger.getLogger(ProgressJournal.class.getName());
+
+    private final Path          file;
+    private final RunStats      stats;
+    private final Set<String>   doneParts = ConcurrentHashMap.newKeySet();
+    private final Object        syncLock = new Object();
+    private StringBuilder       buffer = new StringBuilder();
+    private FileChannel         channel;
+    private ScheduledExecutorService    syncer;
+
+    public ProgressJournal(Path file, RunStats stats) {
+        this.file = file;
+        this.stats = stats;
+    }
+
+    /**
+     * Replay the journal left by an earlier run: the last watermark of each folder advances its UID and date in the state,
+     * and the parts are kept to be skipped.  A line cut off by a crash is ignored.  Return the number of lines replayed.
+     */
+    public int recover(Properties state) throws IOException {
+        if (!Files.exists(file))
+            return 0;
+        Map<String, String[]>   watermarks = new HashMap<>();
+        int                     count = 0;
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            String[]    fields = line.split("\t");
+            if (fields.length != 5 || !fields[2].matches("\\d+") || !fields[3].matches("\\d+")) {
+                log.warning("Skip the corrupted line in journal " + file + ": " + line);
+                continue;
+            }
+            if (fields[0].equals("P"))
+                doneParts.add(key(fields[1], Long.parseLong(fields[2]), Long.parseLong(fields[3]), fields[4]));
+            else if (fields[0].equals("W"))
+                watermarks.put(fields[1], fields);
+            count++;
+        }
+        for (String[] w : watermarks.values())
+            applyWatermark(state, w[1], Long.parseLong(w[2]), Long.parseLong(w[3]), w[4]);
+        log.info("Replayed " + count + " lines of journal " + file + ", " + doneParts.size() + " parts, " + watermarks.size() + " watermarks");
+        return count;
+    }
+
+    private static void applyWatermark(Properties state, String folder, long uidValidity, long uid, String lastDate) {
+        String  savedValidity = state.getProperty("download.uidvalidity." + folder);
+        String  savedUid = state.getProperty("download.last.uid." + folder);
+        if (savedValidity == null || savedUid == null || Long.parseLong(savedValidity) != uidValidity || Long.parseLong(savedUid) < uid) {
+            state.put("download.uidvalidity." + folder, String.valueOf(uidValidity));
+            state.put("download.last.uid." + folder, String.valueOf(uid));
+        }
+        for (String key : Arrays.asList("download.last.date." + folder, "download.last.date")) {
+            String  prevDate = state.getProperty(key);
+            if (prevDate == null || prevDate.compareTo(lastDate) < 0)
+                state.put(key, lastDate);
+        }
+    }
+
+    /** Open the journal for appending, syncing the appended lines every syncMS milliseconds. */
+    public void open(long syncMS) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread  t = new Thread(r, "journal-sync");
+                t.setDaemon(true);
+                return t;
+            });
+        syncer.scheduleWithFixedDelay(() -> {
+                try {
+                    sync();
+                } catch(Exception e) {
+                    Dbg.error(log, "Failed to sync journal " + file, e);
+                }
+            }, syncMS, syncMS, TimeUnit.MILLISECONDS);
+    }
+
+    /** Whether the part was finalized by an earlier run. */
+    public boolean isDone(String folder, long uidValidity, long uid, String section) {
+        return !doneParts.isEmpty() && doneParts.contains(key(folder, uidValidity, uid, section));
+    }
+
+    public synchronized void part(String folder, long uidValidity, long uid, String section) {
+        buffer.append("P\t").append(folder).append('\t').append(uidValidity).append('\t').append(uid).append('\t').append(section).append('\n');
+    }
+
+    public synchronized void watermark(String folder, long uidValidity, long uid, Date date) {
+        buffer.append("W\t").append(folder).append('\t').append(uidValidity).append('\t').append(uid).append('\t')
+            .append(Util.dateYYYYMMdd().format(date)).append('\n');
+    }
+
+    /** Write the lines appended since the last sync and fsync them, as one commit. */
+    public void sync() throws IOException {
+        synchronized(syncLock) {
+            String  lines;
+            synchronized(this) {
+                if (buffer.length() == 0 || channel == null)
+                    return;
+                lines = buffer.toString();
+                buffer = new StringBuilder();
+            }
+            ByteBuffer  bytes = ByteBuffer.wrap(lines.getBytes(StandardCharsets.UTF_8));
+            while (bytes.hasRemaining())
+                channel.write(bytes);
+            channel.force(false);
+            stats.inc("journal.syncs");
+            stats.add("journal.bytes", bytes.limit());
+        }
+    }
+
+    /** Sync the rest of the lines and close the journal, keeping the file for the next run. */
+    public void close() throws IOException {
+        if (syncer != null) {
+            syncer.shutdown();      // not interrupting a sync in progress, which would close the channel.
+            try {
+                syncer.awaitTermination(10, TimeUnit.SECONDS);
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        sync();
+        synchronized(syncLock) {
+            if (channel != null)
+                channel.close();
+            channel = null;
+        }
+    }
+
+    /** Close and remove the journal, once its progress is in the saved state. */
+    public void delete() throws IOException {
+        close();
+        Files.deleteIfExists(file);
+    }
+
+    private static String key(String folder, long uidValidity, long uid, String section) {
+        return folder + "\t" + uidValidity + "\t" + uid + "\t" + section;
+    }
+
+}
@@ -0,0 +1,161 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: FetchMailAtt
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2015 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+package fetchmailatt;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.logging.*;
+import javax.mail.*;
+import javax.mail.internet.MimeUtility;
+import com.sun.mail.iap.*;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.protocol.BODY;
+import com.sun.mail.imap.protocol.FetchResponse;
+
+
+/**
+ * Download of a large attachment that survives a broken connection or a failed run.  The raw, still encoded bytes of the
+ * part are fetched in ranges with BODY.PEEK[section]<offset.length> into a .partial file next to the target file.
+ * A .partial.properties sidecar records the UIDVALIDITY, UID, section, encoding and size of the part and the bytes
+ * written; a later download of the same part continues after them.  The part ends at the BODYSTRUCTURE size, or at
+ * the first range returned short or empty, as the size can be the server's estimate of the encoded size.
+ * The raw bytes are then decoded into the temp file and the partial files removed.
+ */
+public class ResumableDownload {
+    private static final Logger log = Logger.getLogger(ResumableDownload.class.getName());
+
+    private final Path      partial;
+    private final Path      sidecar;
+    private final long      uidValidity;
+    private final long      uid;
+    private final String    section;
+    private final String    encoding;
+    private final long      size;
+
+    public ResumableDownload(Path file, long uidValidity, long uid, String section, String encoding, long size) {
+        this.partial = file.resolveSibling(file.getFileName() + "." + uid + "-" + section + ".partial");
+        this.sidecar = partial.resolveSibling(partial.getFileName() + ".properties");
+        this.uidValidity = uidValidity;
+        this.uid = uid;
+        this.section = section;
+        this.encoding = Util.defval(encoding, "7bit");
+        this.size = size;
+    }
+
+    /** The bytes written by an earlier download of the same part, or 0 to start over. */
+    public long resumeOffset() throws IOException {
+        Properties  props = Util.loadProperties(sidecar);
+        if (props == null || !Files.exists(partial) || !matches(props)) {
+            discard();
+            return 0;
+        }
+        long        written = Math.min(Long.parseLong(props.getProperty("bytes", "0")), Files.size(partial));
+        try (FileChannel channel = FileChannel.open(partial, StandardOpenOption.WRITE)) {
+            channel.truncate(written);      // drop the bytes written after the sidecar was last saved.
+        }
+        return written;
+    }
+
+    private boolean matches(Properties props) {
+        return String.valueOf(uidValidity).equals(props.getProperty("uidvalidity")) &&
+            String.valueOf(uid).equals(props.getProperty("uid")) &&
+            section.equals(props.getProperty("section")) &&
+            encoding.equalsIgnoreCase(props.getProperty("encoding")) &&
+            String.valueOf(size).equals(props.getProperty("size"));
+    }
+
+    /** Fetch the raw bytes from offset to the end of the part, chunkSize at a time.  Return the bytes fetched.
+     *  A broken connection throws, with the bytes written so far kept for resuming. */
+    public long fetch(IMAPFolder folder, long offset, int chunkSize) throws Exception {
+        Message     msg = ((UIDFolder)folder).getMessageByUID(uid);
+        if (msg == null)
+            throw new MessagingException("Message UID " + uid + " no longer exists.");
+        int         msgno = msg.getMessageNumber();
+        long        start = offset;
+        try (FileChannel out = FileChannel.open(partial, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            out.position(offset);
+            while (offset < size) {
+                int         length = (int)Math.min(chunkSize, size - offset);
+                ByteArray   data = fetchRange(folder, msgno, offset, length);
+                if (data == null || data.getCount() == 0)
+                    break;          // offset is at the end of the part.
+                ByteBuffer  buf = ByteBuffer.wrap(data.getBytes(), data.getStart(), data.getCount());
+                while (buf.hasRemaining())
+                    out.write(buf);
+                offset += data.getCount();
+                saveSidecar(offset);
+                if (data.getCount() < length)
+                    break;          // the range is cut short at the end of the part.
+            }
+        }
+        if (offset != size)
+            log.info("Part " + section + " of UID " + uid + " ended at " + offset + " bytes, short of the estimated " + size);
+        return offset - start;
+    }
+
+    // The FETCH is sent as is rather than with IMAPProtocol.peekBody, whose int offset stops at 2GB.
+    private ByteArray fetchRange(IMAPFolder folder, int msgno, long offset, int length) throws MessagingException {
+        return (ByteArray)folder.doCommand(p -> {
+                Response[]  r = p.command("FETCH " + msgno + " (BODY.PEEK[" + section + "]<" + offset + "." + length + ">)", null);
+                Response    response = r[r.length - 1];
+                ByteArray   data = null;
+                for (int i = 0; i < r.length - 1; i++) {
+                    if (r[i] instanceof FetchResponse && ((FetchResponse)r[i]).getNumber() == msgno) {
+                        BODY    body = (BODY)((FetchResponse)r[i]).getItem(BODY.class);
+                        if (body != null) {
+                            data = body.getByteArray();
+                            r[i] = null;    // consumed, not for the other handlers.
+                        }
+                    }
+                }
+                p.notifyResponseHandlers(r);
+                p.handleResult(response);
+                return data;
+            });
+    }
+
+    private void saveSidecar(long bytes) throws IOException {
+        Properties  props = Util.asProperties("uidvalidity", String.valueOf(uidValidity),
+                                              "uid", String.valueOf(uid),
+                                              "section", section,
+                                              "encoding", encoding,
+                                              "size", String.valueOf(size),
+                                              "bytes", String.valueOf(bytes));
+        Path        tmp = sidecar.resolveSibling(sidecar.getFileName() + ".tmp");
+        Util.saveProperties(tmp, props);
+        Files.move(tmp, sidecar, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** Decode the complete raw bytes into tmpf, and remove the partial files.  Return the decoded size. */
+    public long decode(AttachmentWriter writer, Path tmpf, MessageDigest digest) throws Exception {
+        long    bytes;
+        try (InputStream in = MimeUtility.decode(new BufferedInputStream(Files.newInputStream(partial)), encoding)) {
+            bytes = writer.write(in, tmpf, digest);
+        }
+        discard();
+        return bytes;
+    }
+
+    private void discard() throws IOException {
+        Files.deleteIfExists(partial);
+        Files.deleteIfExists(sidecar);
+    }
+
+}
@@ -0,0 +1,160 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: FetchMailAtt
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2015 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+package fetchmailatt;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.LongSupplier;
+
+
+/**
+ * Named counters, timers and gauges of a run.  Thread safe; counters and timers are created on first use.
+ * A timer is a histogram of the durations.  A gauge reads a current value, e.g. a queue depth, when asked.
+ */
+public class RunStats {
+
+    private final ConcurrentMap<String, LongAdder>      counters = new ConcurrentSkipListMap<>();
+    private final ConcurrentMap<String, Histogram>      timers = new ConcurrentSkipListMap<>();
+    private final ConcurrentMap<String, LongSupplier>   gauges = new ConcurrentSkipListMap<>();
+
+    public void add(String name, long delta) {
+        counters.computeIfAbsent(name, k -> new LongAdder()).add(delta);
+    }
+
+    public void inc(String name) {
+        add(name, 1);
+    }
+
+    public long get(String name) {
+        LongAdder   counter = counters.get(name);
+        return counter == null ? 0 : counter.sum();
+    }
+
+    public Map<String, Long> snapshot() {
+        Map<String, Long>   map = new LinkedHashMap<>();
+        counters.forEach((name, counter) -> map.put(name, counter.sum()));
+        return map;
+    }
+
+    /** Record the duration since startNS, from System.nanoTime(). */
+    public void time(String name, long startNS) {
+        timer(name).record(System.nanoTime() - startNS);
+    }
+
+    public Histogram timer(String name) {
+        return timers.computeIfAbsent(name, k -> new Histogram());
+    }
+
+    public Map<String, Histogram> timers() {
+        return Collections.unmodifiableMap(timers);
+    }
+
+    public void gauge(String name, LongSupplier supplier) {
+        gauges.put(name, supplier);
+    }
+
+    public Map<String, Long> gaugeValues() {
+        Map<String, Long>   map = new LinkedHashMap<>();
+        gauges.forEach((name, gauge) -> map.put(name, gauge.getAsLong()));
+        return map;
+    }
+
+    public void print() {
+        snapshot().forEach((name, value) -> System.out.println("  " + name + ": " + value));
+        timers.forEach((name, timer) -> System.out.println(String.format("  %s: count %d, mean %.1fms, p50 %.1fms, p99 %.1fms, max %.1fms", name,
+                                                                         timer.count(), timer.meanNanos() / 1e6, timer.percentileNanos(0.5) / 1e6,
+                                                                         timer.percentileNanos(0.99) / 1e6, timer.maxNanos() / 1e6)));
+    }
+
+    /** The summary of the run as a JSON object. */
+    public String toJson(String account, long startMS, long durationMS, List<Pipeline.StageStats> stages) {
+        StringBuilder   sb = new StringBuilder();
+        sb.append("{\n");
+        sb.append("  \"account\": ").append(jsonString(account)).append(",\n");
+        sb.append("  \"start\": ").append(jsonString(Util.dateTimeISO().format(new Date(startMS)))).append(",\n");
+        sb.append("  \"duration.ms\": ").append(durationMS).append(",\n");
+        sb.append("  \"counters\": {");
+        appendEntries(sb, snapshot());
+        sb.append("},\n");
+        sb.append("  \"gauges\": {");
+        appendEntries(sb, gaugeValues());
+        sb.append("},\n");
+        sb.append("  \"timers\": {");
+        String  sep = "\n";
+        for (Map.Entry<String, Histogram> entry : timers.entrySet()) {
+            Histogram   timer = entry.getValue();
+            sb.append(sep).append("    ").append(jsonString(entry.getKey())).append(": {")
+                .append("\"count\": ").append(timer.count())
+                .append(", \"total.ms\": ").append(ms(timer.totalNanos()))
+                .append(", \"mean.ms\": ").append(ms(timer.meanNanos()))
+                .append(", \"p50.ms\": ").append(ms(timer.percentileNanos(0.5)))
+                .append(", \"p90.ms\": ").append(ms(timer.percentileNanos(0.9)))
+                .append(", \"p99.ms\": ").append(ms(timer.percentileNanos(0.99)))
+                .append(", \"max.ms\": ").append(ms(timer.maxNanos())).append("}");
+            sep = ",\n";
+        }
+        sb.append(timers.isEmpty() ? "" : "\n  ").append("},\n");
+        sb.append("  \"stages\": [");
+        sep = "\n";
+        for (Pipeline.StageStats stage : stages) {
+            sb.append(sep).append("    {\"name\": ").append(jsonString(stage.name))
+                .append(", \"threads\": ").append(stage.threads)
+                .append(", \"processed\": ").append(stage.processed)
+                .append(", \"errors\": ").append(stage.errors)
+                .append(", \"busy\": ").append(String.format(Locale.ROOT, "%.3f", stage.busy))
+                .append(", \"avg.queue\": ").append(String.format(Locale.ROOT, "%.1f", stage.avgQueue))
+                .append(", \"max.queue\": ").append(stage.maxQueue).append("}");
+            sep = ",\n";
+        }
+        sb.append(stages.isEmpty() ? "" : "\n  ").append("]\n");
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    private static void appendEntries(StringBuilder sb, Map<String, Long> map) {
+        String  sep = "\n";
+        for (Map.Entry<String, Long> entry : map.entrySet()) {
+            sb.append(sep).append("    ").append(jsonString(entry.getKey())).append(": ").append(entry.getValue());
+            sep = ",\n";
+        }
+        sb.append(map.isEmpty() ? "" : "\n  ");
+    }
+
+    private static String ms(double nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+    }
+
+    static String jsonString(String str) {
+        StringBuilder   sb = new StringBuilder("\"");
+        for (char ch : str.toCharArray()) {
+            switch (ch) {
+            case '"':   sb.append("\\\""); break;
+            case '\\':  sb.append("\\\\"); break;
+            case '\n':  sb.append("\\n"); break;
+            case '\r':  sb.append("\\r"); break;
+            case '\t':  sb.append("\\t"); break;
+            default:
+                if (ch < 0x20)
+                    sb.append(String.format("\\u%04x", (int)ch));
+                else
+                    sb.append(ch);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+}
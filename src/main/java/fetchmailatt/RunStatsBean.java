@@ -0,0 +1,136 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: FetchMailAtt
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2015 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+package fetchmailatt;
+
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.logging.*;
+import javax.management.*;
+
+
+/**
+ * JMX view of the RunStats of a running job, as fetchmailatt:type=Metrics,name=ACCOUNT.
+ * The counters and the gauges are attributes by their names; each timer has the attributes
+ * NAME.count, NAME.mean.ms, NAME.p50.ms, NAME.p99.ms, and NAME.max.ms.
+ */
+public class RunStatsBean implements DynamicMBean {
+    private static final Logger log = Logger.getLogger(RunStatsBean.class.getName());
+
+    private static final String[]   TIMER_ATTRS = { ".count", ".mean.ms", ".p50.ms", ".p99.ms", ".max.ms" };
+
+    private final RunStats  stats;
+
+    public RunStatsBean(RunStats stats) {
+        this.stats = stats;
+    }
+
+    /** Register the stats of the account on the platform MBean server.  Return the name to unregister, or null on failure. */
+    public static ObjectName register(String account, RunStats stats) {
+        try {
+            MBeanServer     server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName      name = new ObjectName("fetchmailatt:type=Metrics,name=" + quoteIfNeeded(account));
+            if (server.isRegistered(name))
+                server.unregisterMBean(name);
+            server.registerMBean(new RunStatsBean(stats), name);
+            return name;
+        } catch(Exception e) {
+            Dbg.error(log, "Failed to register the metrics MBean of " + account, e);
+            return null;
+        }
+    }
+
+    public static void unregister(ObjectName name) {
+        if (name == null)
+            return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch(Exception e) {
+            log.info("Failed to unregister " + name + ": " + e);
+        }
+    }
+
+    private static String quoteIfNeeded(String value) {
+        for (char ch : value.toCharArray()) {
+            if (",=:\"*?\n".indexOf(ch) >= 0)
+                return ObjectName.quote(value);
+        }
+        return value;
+    }
+
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Long    counter = stats.snapshot().get(attribute);
+        if (counter != null)
+            return counter;
+        Long    gauge = stats.gaugeValues().get(attribute);
+        if (gauge != null)
+            return gauge;
+        for (Map.Entry<String, Histogram> entry : stats.timers().entrySet()) {
+            if (!attribute.startsWith(entry.getKey() + "."))
+                continue;
+            Histogram   timer = entry.getValue();
+            switch (attribute.substring(entry.getKey().length())) {
+            case ".count":      return timer.count();
+            case ".mean.ms":    return timer.meanNanos() / 1e6;
+            case ".p50.ms":     return timer.percentileNanos(0.5) / 1e6;
+            case ".p99.ms":     return timer.percentileNanos(0.99) / 1e6;
+            case ".max.ms":     return timer.maxNanos() / 1e6;
+            }
+        }
+        throw new AttributeNotFoundException(attribute);
+    }
+
+    public AttributeList getAttributes(String[] attributes) {
+        AttributeList   list = new AttributeList();
+        for (String attribute : attributes) {
+            try {
+                list.add(new Attribute(attribute, getAttribute(attribute)));
+            } catch(AttributeNotFoundException e) {
+                // left out, as the MBean server expects.
+            }
+        }
+        return list;
+    }
+
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Read only: " + attribute.getName());
+    }
+
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    // The counters and timers are created on first use, so the attributes are listed anew each time.
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo>    attrs = new ArrayList<>();
+        for (String name : stats.snapshot().keySet())
+            attrs.add(new MBeanAttributeInfo(name, "java.lang.Long", "counter", true, false, false));
+        for (String name : stats.gaugeValues().keySet())
+            attrs.add(new MBeanAttributeInfo(name, "java.lang.Long", "gauge", true, false, false));
+        for (String name : stats.timers().keySet()) {
+            for (String suffix : TIMER_ATTRS) {
+                attrs.add(new MBeanAttributeInfo(name + suffix, suffix.equals(".count") ? "java.lang.Long" : "java.lang.Double",
+                                                 "timer", true, false, false));
+            }
+        }
+        return new MBeanInfo(getClass().getName(), "FetchMailAtt run metrics", attrs.toArray(new MBeanAttributeInfo[attrs.size()]),
+                             null, null, null);
+    }
+
+}
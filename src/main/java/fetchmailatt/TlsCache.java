@@ -42,22 +42,25 @@ public class TlsCache<K,V> {
     /** Create a cache access object on the namespace, with no factory. */
     public TlsCache(String namespace) {
         this.namespace = namespace;
-        sTlsObj.get().put(namespace, new HashMap<K,V>());
     }
 
     /** Create a cache access object on the namespace, with factory to create missing item. */
     public TlsCache(String namespace, TlsCache.Factory<K,V> factory) {
         this.namespace = namespace;
         this.factory = factory;
-        sTlsObj.get().put(namespace, new HashMap<K,V>());
+    }
+
+    /** The map of a namespace in the current thread, created on first access in the thread. */
+    private static Map tlsMap(String namespace) {
+        return (Map)sTlsObj.get().computeIfAbsent(namespace, k -> new HashMap());
     }
 
     /** Get a cached item.  Return null if not exists. */
     public V get(K key) {
         if (key != null) {
-            return ((Map<K, V>)sTlsObj.get().get(namespace)).get(key);
+            return ((Map<K, V>)tlsMap(namespace)).get(key);
         } else {
-            return ((Map<String, V>)sTlsObj.get().get(NULLKEY)).get(namespace); // for null key, use namespace as key on the NULLKEY map.
+            return ((Map<String, V>)tlsMap(NULLKEY)).get(namespace); // for null key, use namespace as key on the NULLKEY map.
         }
     }
 
@@ -72,13 +75,13 @@ public class TlsCache<K,V> {
 
         V   value;
         if (key != null) {
-            Map<K, V>       map = (Map<K, V>)sTlsObj.get().get(namespace);
+            Map<K, V>       map = (Map<K, V>)tlsMap(namespace);
             if ((value = map.get(key)) == null) {
                 value = factory.create(key, createParams);
                 map.put(key, value);
             }
         } else {
-            Map<String, V>  nullmap = (Map<String, V>)sTlsObj.get().get(NULLKEY);
+            Map<String, V>  nullmap = (Map<String, V>)tlsMap(NULLKEY);
             if ((value = nullmap.get(namespace)) == null) {         // for null key, use namespace as key on the NULLKEY map.
                 value = factory.create(key, createParams);
                 nullmap.put(namespace, value);
@@ -94,25 +97,25 @@ public class TlsCache<K,V> {
     /** Cache an item. */
     public void put(K key, V value) {
         if (key != null) {
-            ((Map<K, V>)sTlsObj.get().get(namespace)).put(key, value);
+            ((Map<K, V>)tlsMap(namespace)).put(key, value);
         } else {
-            ((Map<String, V>)sTlsObj.get().get(NULLKEY)).put(namespace, value);
+            ((Map<String, V>)tlsMap(NULLKEY)).put(namespace, value);
         }
     }
 
     /** Remove an item from cache. */
     public V remove(K key) {
         if (key != null) {
-            return ((Map<K, V>)sTlsObj.get().get(namespace)).remove(key);
+            return ((Map<K, V>)tlsMap(namespace)).remove(key);
         } else {
-            return ((Map<String, V>)sTlsObj.get().get(NULLKEY)).remove(namespace);
+            return ((Map<String, V>)tlsMap(NULLKEY)).remove(namespace);
         }
     }
 
     /** Remove all items with the same namespace in the cache. */
     public void clear() {
-        ((Map<K, V>)sTlsObj.get().get(namespace)).clear();
-        ((Map<String, V>)sTlsObj.get().get(NULLKEY)).remove(namespace);
+        ((Map<K, V>)tlsMap(namespace)).clear();
+        ((Map<String, V>)tlsMap(NULLKEY)).remove(namespace);
     }
 
 }
@@ -28,9 +28,10 @@ import java.text.*;
 
 public class Util {
 
+    /** The directory of the saved states, ~/.fetchmailatt, or the fetchmailatt.home system property if set, e.g. by the tests. */
     public static Path getAppDir() throws IOException {
-        Path    path = Paths.get(System.getProperty("user.home"));
-        path = path.resolve(".fetchmailatt");
+        String  home = System.getProperty("fetchmailatt.home");
+        Path    path = home != null ? Paths.get(home) : Paths.get(System.getProperty("user.home")).resolve(".fetchmailatt");
         if (!Files.exists(path))
             Files.createDirectories(path);
         return path;
@@ -40,13 +41,29 @@ public class Util {
         return getAppDir().resolve(stateFilename + ".state");
     }
 
+    public static Path getIndexFile(String stateFilename) throws IOException {
+        return getAppDir().resolve(stateFilename + ".index");
+    }
+
+    public static Path getJournalFile(String stateFilename) throws IOException {
+        return getAppDir().resolve(stateFilename + ".journal");
+    }
+
+    public static Path getSummaryFile(String stateFilename) throws IOException {
+        return getAppDir().resolve(stateFilename + ".summary.json");
+    }
+
     /** Return list literals as list and return array as list; also handle null array. */
+    @SafeVarargs
+    @SuppressWarnings("varargs")    // passed on to Arrays.asList, itself safe.
     public static <T> List<T> asList(T... objs) {
         return objs != null ? Arrays.asList(objs) : new ArrayList<T>();
     }
 
+    @SafeVarargs
+    @SuppressWarnings("varargs")    // the array is only read by the stream.
     public static <T> Stream<T> asStream(T... objs) {
-        return asList(objs).stream();
+        return objs != null ? Arrays.stream(objs) : Stream.empty();
     }
 
     /** Turns a list of arguments (or array) into a map.  Arguments are listed as key1,value1, key2,value2, ... */
@@ -174,6 +191,10 @@ public class Util {
         return sFormatCache.val("yyyy-MM-dd.HH.mm.ss");
     }
 
+    public static SimpleDateFormat dateTimeISO() {
+        return sFormatCache.val("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+    }
+
     public static SimpleDateFormat timeMMddHHmm() {
         return sFormatCache.val("MM/dd/yyyy hh:mma");
     }
@@ -326,8 +347,9 @@ public class Util {
         });
 
     public static byte[] md5bytes(String str) {
-        MessageDigest   md = sMd5Cache.get("md5");
-        md.update(str.getBytes(), 0, str.length());
+        MessageDigest   md = sMd5Cache.val("md5");
+        byte[]          bytes = str.getBytes();
+        md.update(bytes, 0, bytes.length);
         return md.digest();
     }
 
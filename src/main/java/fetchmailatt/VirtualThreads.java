@@ -0,0 +1,63 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: FetchMailAtt
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2015 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+package fetchmailatt;
+
+import java.lang.reflect.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+
+/**
+ * Virtual threads of Java 21, looked up at runtime since the build targets Java 8.
+ * On older JVMs they are reported as not supported.
+ */
+public class VirtualThreads {
+
+    private static final ThreadFactory  sFactoryProbe = createFactory("probe");
+
+    public static boolean isSupported() {
+        return sFactoryProbe != null;
+    }
+
+    /**
+     * Executor starting a new virtual thread for each task, all named name, so that what's tracked by thread name,
+     * e.g. the download rates of the workers, counts them as one worker rather than growing by one per task.
+     */
+    public static Optional<ExecutorService> newExecutor(String name) {
+        ThreadFactory   factory = createFactory(name);
+        if (factory == null)
+            return Optional.empty();
+        try {
+            Method  m = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return Optional.of((ExecutorService)m.invoke(null, factory));
+        } catch(Exception e) {
+            return Optional.empty();
+        }
+    }
+
+    // Thread.ofVirtual().name(name).factory()
+    private static ThreadFactory createFactory(String name) {
+        try {
+            Class<?>    builderClass = Class.forName("java.lang.Thread$Builder");
+            Object      builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class).invoke(builder, name);
+            return (ThreadFactory)builderClass.getMethod("factory").invoke(builder);
+        } catch(Exception e) {
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,58 @@
+import junit.framework.*;
+import java.io.*;
+import java.net.SocketTimeoutException;
+import javax.mail.*;
+import fetchmailatt.*;
+
+
+
+public class AdaptiveLimitTest extends TestCase {
+
+    private static final long   MB = 1024 * 1024;
+
+    public void testSlowStartThenAdditive() throws Exception {
+        AdaptiveLimit   limit = new AdaptiveLimit("test", 1, 64, 1, 2.0, new RunStats());
+        for (int i = 0; i < 7; i++)
+            limit.succeeded(limit.start(), MB, 10000000);
+        assertEquals(8, limit.limit());         // +1 per download in slow start.
+
+        limit.failed(limit.start(), new MessagingException("NO [THROTTLED] Too many simultaneous connections"));
+        assertEquals(4, limit.limit());
+        for (int i = 0; i < 5; i++)
+            limit.succeeded(limit.start(), MB, 10000000);
+        assertEquals(5, limit.limit());         // +1/limit per download after, about +1 per round.
+    }
+
+    public void testOneDecreasePerRound() throws Exception {
+        RunStats        stats = new RunStats();
+        AdaptiveLimit   limit = new AdaptiveLimit("test", 1, 16, 16, 2.0, stats);
+        long[]          tokens = new long[8];
+        for (int i = 0; i < tokens.length; i++)
+            tokens[i] = limit.start();
+        assertEquals(8, limit.inFlight());
+        for (long token : tokens)
+            limit.failed(token, new FolderClosedException(null, "BYE"));
+        assertEquals(8, limit.limit());
+        assertEquals(1, stats.get("concurrency.decrease.throttled"));
+        assertEquals(0, limit.inFlight());
+    }
+
+    public void testBackOffOnLatency() throws Exception {
+        RunStats        stats = new RunStats();
+        AdaptiveLimit   limit = new AdaptiveLimit("test", 1, 16, 10, 2.0, stats);
+        limit.succeeded(limit.start(), MB, 10000000);
+        assertEquals(11, limit.limit());
+        limit.succeeded(limit.start(), MB, 50000000);        // 5x slower per byte.
+        assertEquals(9, limit.limit());
+        assertEquals(1, stats.get("concurrency.decrease.latency"));
+    }
+
+    public void testNotThrottlingErrors() throws Exception {
+        AdaptiveLimit   limit = new AdaptiveLimit("test", 1, 16, 4, 2.0, new RunStats());
+        limit.failed(limit.start(), new IOException("No space left on device"));
+        assertEquals(4, limit.limit());
+        assertTrue(AdaptiveLimit.isThrottling(new MessagingException("fetch failed", new SocketTimeoutException("Read timed out"))));
+        assertFalse(AdaptiveLimit.isThrottling(new MessagingException("Section 3 not found in message.")));
+    }
+
+}
@@ -0,0 +1,56 @@
+
+import junit.framework.*;
+import java.io.*;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.util.*;
+import fetchmailatt.*;
+
+
+
+public class AttachmentWriterTest extends TestCase {
+
+    private Path    dir;
+
+    protected void setUp() throws Exception {
+        dir = Files.createTempDirectory("attwriter");
+    }
+
+    protected void tearDown() throws Exception {
+        for (File f : dir.toFile().listFiles())
+            f.delete();
+        Files.delete(dir);
+    }
+
+
+    public void testWriteAcrossBuffers() throws Exception {
+        byte[]              data = new byte[100000];
+        new Random(1).nextBytes(data);
+        AttachmentWriter    writer = new AttachmentWriter(4096, 2);
+        Path                file = dir.resolve("a.bin");
+
+        assertEquals(data.length, writer.write(new ByteArrayInputStream(data), file));
+        assertTrue(Arrays.equals(data, Files.readAllBytes(file)));
+        assertEquals(data.length, writer.totalBytes());
+    }
+
+    public void testDigestOfBytesWritten() throws Exception {
+        byte[]              data = new byte[200000];
+        new Random(2).nextBytes(data);
+        AttachmentWriter    writer = new AttachmentWriter(8192, 1);
+        MessageDigest       digest = AttachmentStore.newDigest();
+
+        writer.write(new ByteArrayInputStream(data), dir.resolve("c.bin"), digest);
+        assertTrue(Arrays.equals(AttachmentStore.newDigest().digest(data), digest.digest()));
+    }
+
+    public void testReplaceExisting() throws Exception {
+        AttachmentWriter    writer = new AttachmentWriter(4096, 1);
+        Path                file = dir.resolve("b.txt");
+
+        writer.write(new ByteArrayInputStream("a longer content".getBytes()), file);
+        writer.write(new ByteArrayInputStream("short".getBytes()), file);
+        assertEquals("short", new String(Files.readAllBytes(file)));
+    }
+
+}
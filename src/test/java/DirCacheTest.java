@@ -0,0 +1,74 @@
+
+import junit.framework.*;
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+import fetchmailatt.*;
+
+
+
+public class DirCacheTest extends TestCase {
+
+    private Path    dir;
+
+    protected void setUp() throws Exception {
+        dir = Files.createTempDirectory("dircache");
+    }
+
+    protected void tearDown() throws Exception {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path p : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList()))
+                Files.delete(p);
+        }
+    }
+
+
+    public void testWarmFromExistingTree() throws Exception {
+        Files.createDirectories(dir.resolve("a@x.com").resolve("2015").resolve("07"));
+        Files.createDirectories(dir.resolve("b@x.com").resolve("2015"));
+        Files.write(dir.resolve("b@x.com").resolve("2015").resolve("x.pdf"), "x".getBytes());
+        Files.createDirectories(dir.resolve(".store").resolve("ab"));
+
+        RunStats    stats = new RunStats();
+        DirCache    cache = new DirCache(stats);
+        assertEquals(6, cache.warm(dir, 3, dir.resolve(".store")));
+        cache.ensure(dir.resolve("a@x.com").resolve("2015").resolve("07"));
+        cache.ensure(dir.resolve("b@x.com").resolve("2015").resolve("08"));
+        assertEquals(1, stats.get("dirs.cached"));
+        assertEquals(1, stats.get("dirs.created"));
+        assertTrue(Files.isDirectory(dir.resolve("b@x.com").resolve("2015").resolve("08")));
+        assertEquals(0, new DirCache(stats).warm(dir.resolve("missing"), 3, dir.resolve(".store")));
+        assertEquals(3, new DirCache(stats).warm(dir, 1, dir.resolve(".store")));      // one groupby level.
+        assertEquals(1, new DirCache(stats).warm(dir, 0, dir.resolve(".store")));      // flat.
+    }
+
+    public void testCreateOnceAcrossThreads() throws Exception {
+        RunStats        stats = new RunStats();
+        DirCache        cache = new DirCache(stats);
+        DirCache        otherAccount = new DirCache(stats);
+        Path            target = dir.resolve("c@x.com").resolve("2015").resolve("07");
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        List<Future<?>> results = new ArrayList<>();
+        for (int i = 0; i < 64; i++) {
+            DirCache    c = i % 2 == 0 ? cache : otherAccount;
+            results.add(pool.submit(() -> { c.ensure(target); return null; }));
+        }
+        for (Future<?> f : results)
+            f.get();
+        pool.shutdown();
+        assertTrue(Files.isDirectory(target));
+        assertEquals(2, stats.get("dirs.created"));     // once per cache.
+    }
+
+    public void testCreateOverFile() throws Exception {
+        Files.write(dir.resolve("f"), "x".getBytes());
+        try {
+            new DirCache(new RunStats()).ensure(dir.resolve("f"));
+            fail("expected IOException");
+        } catch(IOException e) {
+        }
+    }
+
+}
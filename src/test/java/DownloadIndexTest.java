@@ -0,0 +1,87 @@
+
+import junit.framework.*;
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import fetchmailatt.*;
+
+
+
+public class DownloadIndexTest extends TestCase {
+
+    private Path    dir;
+    private Path    indexFile;
+
+    protected void setUp() throws Exception {
+        dir = Files.createTempDirectory("dlindex");
+        indexFile = Files.createTempFile("dlindex", ".index");
+        Files.delete(indexFile);
+    }
+
+    protected void tearDown() throws Exception {
+        for (File f : dir.toFile().listFiles()) {
+            for (File c : Util.defval(f.listFiles(), File.class))
+                c.delete();
+            f.delete();
+        }
+        Files.delete(dir);
+        Files.deleteIfExists(indexFile);
+    }
+
+
+    public void testRebuildFromDirectory() throws Exception {
+        Path    file = dir.resolve("a").resolve("x.pdf");
+        Files.createDirectories(file.getParent());
+        Files.write(file, "x".getBytes());
+        Files.setLastModifiedTime(file, FileTime.fromMillis(5000));
+
+        try (DownloadIndex index = new DownloadIndex(indexFile, dir)) {
+            assertFalse(index.open());
+            assertTrue(index.contains(file, 5000));
+            assertTrue(index.contains(file, 4000));
+            assertFalse(index.contains(file, 6000));
+            assertFalse(index.contains(dir.resolve("y.pdf"), 0));
+        }
+    }
+
+    public void testRebuildSkipsStore() throws Exception {
+        Path    store = dir.resolve(".store");
+        Path    blob = store.resolve("ab");
+        Path    file = dir.resolve("x.pdf");
+        Files.createDirectories(store);
+        Files.write(blob, "x".getBytes());
+        Files.write(file, "x".getBytes());
+        Files.setLastModifiedTime(file, FileTime.fromMillis(5000));
+
+        try (DownloadIndex index = new DownloadIndex(indexFile, dir, store)) {
+            assertFalse(index.open());
+            assertEquals(1, index.size());
+            assertEquals(5000, index.msgTime(file));
+            assertEquals(-1, index.msgTime(blob));
+        }
+    }
+
+    public void testAddAndReload() throws Exception {
+        try (DownloadIndex index = new DownloadIndex(indexFile, dir)) {
+            index.open();
+            for (int i = 0; i < 5000; i++)
+                index.add(dir.resolve("f" + i), i);
+        }
+        try (DownloadIndex index = new DownloadIndex(indexFile, dir)) {
+            assertTrue(index.open());
+            assertEquals(5000, index.size());
+            assertTrue(index.contains(dir.resolve("f4999"), 4999));
+            assertFalse(index.contains(dir.resolve("f4999"), 5000));
+        }
+    }
+
+    public void testCorruptedIndexRebuilt() throws Exception {
+        Files.write(indexFile, "garbage".getBytes());
+        try (DownloadIndex index = new DownloadIndex(indexFile, dir)) {
+            assertFalse(index.open());
+            assertEquals(0, index.size());
+        }
+    }
+
+}
@@ -0,0 +1,196 @@
+import junit.framework.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.*;
+import fetchmailatt.*;
+
+
+
+public class EndToEndTest extends TestCase {
+
+    private static final String STATE = "endtoendtest";
+
+    private Path    downloadDir;
+    private Path    appDir;
+
+    protected void setUp() throws Exception {
+        downloadDir = Files.createTempDirectory("fetchmailatt-e2e");
+        appDir = Files.createTempDirectory("fetchmailatt-home");
+        System.setProperty("fetchmailatt.home", appDir.toString());    // the state files, not in the real ~/.fetchmailatt.
+    }
+
+    protected void tearDown() throws Exception {
+        System.clearProperty("fetchmailatt.home");
+        delete(downloadDir);
+        delete(appDir);
+    }
+
+    public void testFetchAllAttachments() throws Exception {
+        CorpusGenerator corpus = new CorpusGenerator(12, 2, CorpusGenerator.parseSizes("uniform:1k-64k"), 1);
+        try (ImapFixture imap = new ImapFixture().populate(corpus)) {
+            MailService.fetchAttachments(imap.config(downloadDir), STATE, true, false);
+        }
+        assertDownloaded(corpus);
+        assertFalse(Files.exists(Util.getJournalFile(STATE)));     // compacted into the state at the end of the run.
+    }
+
+    public void testParallelThroughThrottledLink() throws Exception {
+        CorpusGenerator corpus = new CorpusGenerator(8, 3, CorpusGenerator.parseSizes("lognormal:16k,1.0"), 2);
+        try (ImapFixture imap = new ImapFixture().populate(corpus).throttle(5, 4 * 1024 * 1024)) {
+            Map<String, String> config = imap.config(downloadDir);
+            config.put("process.parallel.workers", "4");
+            config.put("process.parallel.connections", "2");
+            MailService.fetchAttachments(config, STATE, true, false);
+        }
+        assertDownloaded(corpus);
+    }
+
+    public void testConnectionsIncludeSearchConnection() throws Exception {
+        CorpusGenerator corpus = new CorpusGenerator(8, 3, CorpusGenerator.parseSizes("lognormal:16k,1.0"), 3);
+        try (ImapFixture imap = new ImapFixture().populate(corpus).throttle(5, 0)) {
+            Map<String, String> config = imap.config(downloadDir);
+            config.put("process.parallel.workers", "4");
+            config.put("process.parallel.connections", "3");
+            MailService.fetchAttachments(config, STATE, true, false);
+            assertEquals(3, imap.maxConnections());
+        }
+        assertDownloaded(corpus);
+    }
+
+    public void testSkipBodiesOfNewsletters() throws Exception {
+        CorpusGenerator corpus = new CorpusGenerator(6, 1, CorpusGenerator.parseSizes("2k"), 3).htmlBody(200 * 1024);
+        try (ImapFixture imap = new ImapFixture().populate(corpus).throttle(0, 0)) {
+            MailService.fetchAttachments(imap.config(downloadDir), STATE, true, false);
+            assertTrue("html bodies fetched, " + imap.bytesDown() + " bytes down", imap.bytesDown() < 200 * 1024);
+        }
+        assertDownloaded(corpus);
+    }
+
+    public void testPruneSmallMessagesOnServer() throws Exception {
+        CorpusGenerator small = new CorpusGenerator(4, 1, CorpusGenerator.parseSizes("2k"), 4);
+        CorpusGenerator large = new CorpusGenerator(3, 1, CorpusGenerator.parseSizes("300k"), 5);
+        try (ImapFixture imap = new ImapFixture().populate(small).populate(large)) {
+            Map<String, String> config = imap.config(downloadDir);
+            config.put("match.file.size.greater.than", "100k");
+            FetchJob            job = new FetchJob(new Cfg(config), STATE, true, false);
+            job.run();
+            assertEquals(small.messageCount(), job.getStats().get("messages.pruned.size"));
+            assertEquals(large.messageCount(), job.getStats().get("messages.matched"));
+        }
+        assertDownloaded(large);
+    }
+
+    public void testResumeBrokenDownload() throws Exception {
+        CorpusGenerator corpus = new CorpusGenerator(1, 1, CorpusGenerator.parseSizes("1m"), 6);
+        try (ImapFixture imap = new ImapFixture().populate(corpus).throttle(0, 0)) {
+            Map<String, String> config = imap.config(downloadDir);
+            config.put("download.resumable", "yes");
+            config.put("download.resumable.min.size", "100k");
+            config.put("download.resumable.chunk", "64k");
+            config.put("mail.reconnect.retries", "0");
+
+            imap.failAfter(700 * 1024);
+            try {
+                new FetchJob(new Cfg(config), STATE, true, false).run();
+            } catch(Exception e) {
+                // the link broke.
+            }
+            assertEquals(1, countFiles(".partial"));
+
+            imap.throttle(0, 0);
+            config.put("mail.port", String.valueOf(imap.port()));
+            FetchJob    job = new FetchJob(new Cfg(config), STATE, true, false);
+            job.run();
+            assertEquals(1, job.getStats().get("download.resumed"));
+            assertTrue(job.getStats().get("download.resumed.bytes") > 0);
+            assertTrue(job.getStats().get("download.raw.bytes") < 1024 * 1024);
+        }
+        assertEquals(0, countFiles(".partial") + countFiles(".partial.properties"));
+        assertDownloaded(corpus);
+    }
+
+    public void testReconnectAfterDroppedConnection() throws Exception {
+        CorpusGenerator corpus = new CorpusGenerator(30, 1, CorpusGenerator.parseSizes("16k"), 7);
+        try (ImapFixture imap = new ImapFixture().populate(corpus).throttle(0, 0)) {
+            Map<String, String> config = imap.config(downloadDir);
+            config.put("process.prefetch.chunk", "5");
+            config.put("process.stage.queue", "2");
+            config.put("process.queue.limit", "2");
+
+            imap.dropAfter(300 * 1024);
+            FetchJob    job = new FetchJob(new Cfg(config), STATE, true, false);
+            job.run();
+            assertTrue(job.getStats().get("connection.reconnects") >= 1);
+            assertEquals(1, job.getStats().get("messages.resumed"));
+            assertEquals(30, job.getStats().get("messages.scanned"));     // not started over.
+            assertEquals(0, job.getStats().get("download.failed"));
+        }
+        assertDownloaded(corpus);
+    }
+
+    public void testResumeFromJournalAfterCrash() throws Exception {
+        CorpusGenerator corpus = new CorpusGenerator(20, 1, CorpusGenerator.parseSizes("16k"), 8);
+        try (ImapFixture imap = new ImapFixture().populate(corpus).throttle(5, 256 * 1024)) {
+            Map<String, String> config = imap.config(downloadDir);
+            config.put("process.resume.from.last", "yes");
+            config.put("process.journal.sync.ms", "20");
+            Path                journalFile = Util.getJournalFile(STATE);
+
+            // Snapshot the journal midway, as a run killed there leaves it.
+            Thread              run = new Thread(() -> {
+                    try {
+                        new FetchJob(new Cfg(config), STATE, true, false).run();
+                    } catch(Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                });
+            run.start();
+            List<String>        crashed = Collections.emptyList();
+            while (run.isAlive()) {
+                try {
+                    List<String>    lines = Files.readAllLines(journalFile);
+                    if (lines.stream().anyMatch(line -> line.startsWith("W\t")))
+                        crashed = lines;
+                } catch(java.io.IOException e) {
+                    // not created yet, or removed at the end of the run.
+                }
+                Thread.sleep(20);
+            }
+            assertFalse("no watermark journaled", crashed.isEmpty());
+            assertFalse(Files.exists(journalFile));
+
+            Files.delete(Util.getStateFile(STATE));     // killed before the folder's state was saved.
+            Files.write(journalFile, crashed);
+            FetchJob            job = new FetchJob(new Cfg(config), STATE, true, false);
+            job.run();
+            assertTrue(job.getStats().get("messages.scanned") < corpus.messageCount());
+            assertFalse(Files.exists(journalFile));
+        }
+        assertDownloaded(corpus);
+    }
+
+    private static void delete(Path dir) throws Exception {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path p : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList()))
+                Files.delete(p);
+        }
+    }
+
+    private long countFiles(String suffix) throws Exception {
+        try (Stream<Path> paths = Files.walk(downloadDir)) {
+            return paths.filter(p -> p.toString().endsWith(suffix)).count();
+        }
+    }
+
+    private void assertDownloaded(CorpusGenerator corpus) throws Exception {
+        try (Stream<Path> paths = Files.walk(downloadDir)) {
+            List<Path>  files = paths.filter(Files::isRegularFile).collect(Collectors.toList());
+            long        bytes = 0;
+            for (Path f : files)
+                bytes += Files.size(f);
+            assertEquals(corpus.attachmentCount(), files.size());
+            assertEquals(corpus.attachmentBytes(), bytes);
+        }
+    }
+
+}
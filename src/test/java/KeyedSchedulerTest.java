@@ -0,0 +1,145 @@
+
+import junit.framework.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import fetchmailatt.*;
+
+
+
+public class KeyedSchedulerTest extends TestCase {
+
+    public void testSameKeyInOrder() throws Exception {
+        KeyedScheduler  scheduler = new KeyedScheduler("test", 4, 1000);
+        List<Integer>   done = Collections.synchronizedList(new ArrayList<>());
+        for (int i = 0; i < 100; i++) {
+            int n = i;
+            scheduler.submit("same", () -> done.add(n));
+        }
+        scheduler.awaitIdle();
+        for (int i = 0; i < 100; i++)
+            assertEquals(i, (int)done.get(i));
+        assertEquals(0, scheduler.shutdown(1000));
+    }
+
+    public void testLongTaskDoesNotBlockOtherKeys() throws Exception {
+        KeyedScheduler  scheduler = new KeyedScheduler("test", 2, 1000);
+        CountDownLatch  release = new CountDownLatch(1);
+        AtomicInteger   others = new AtomicInteger();
+        scheduler.submit("big", () -> { release.await(); return 1; });
+        for (int i = 0; i < 20; i++)
+            scheduler.submit("small" + i, () -> others.incrementAndGet());
+
+        long    deadline = System.currentTimeMillis() + 5000;
+        while (others.get() < 20 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(20, others.get());
+        assertEquals(1, scheduler.pendingCount());
+        release.countDown();
+        scheduler.awaitIdle();
+        scheduler.shutdown(1000);
+    }
+
+    public void testFailedTaskCounted() throws Exception {
+        KeyedScheduler  scheduler = new KeyedScheduler("test", 1, 10);
+        scheduler.submit("a", () -> { throw new Exception("expected failure"); });
+        scheduler.submit("a", () -> 1);
+        scheduler.awaitIdle();
+        assertEquals(1, scheduler.failedCount());
+        scheduler.shutdown(1000);
+    }
+
+    public void testVirtualModeRunsTasks() throws Exception {
+        KeyedScheduler  scheduler = new KeyedScheduler("test", 8, 100, true);     // falls back to platform threads before Java 21.
+        AtomicInteger   count = new AtomicInteger();
+        for (int i = 0; i < 50; i++)
+            scheduler.submit("k" + (i % 5), () -> count.incrementAndGet());
+        scheduler.awaitIdle();
+        assertEquals(50, count.get());
+        assertEquals(VirtualThreads.isSupported(), scheduler.isVirtual());
+        scheduler.shutdown(1000);
+    }
+
+    public void testGroupsTakeTurns() throws Exception {
+        KeyedScheduler  scheduler = new KeyedScheduler("test", 1, 1000);
+        CountDownLatch  release = new CountDownLatch(1);
+        List<String>    done = Collections.synchronizedList(new ArrayList<>());
+        scheduler.submit("hold", "hold", () -> { release.await(); return 1; });    // occupy the thread while queueing.
+        for (int i = 0; i < 10; i++) {
+            scheduler.submit("a", "a" + i, () -> done.add("a"));
+        }
+        for (int i = 0; i < 3; i++) {
+            scheduler.submit("b", "b" + i, () -> done.add("b"));
+        }
+        release.countDown();
+        scheduler.awaitIdle("b");
+        assertTrue(done.lastIndexOf("b") < 6);  // b is not starved behind the earlier tasks of a.
+        scheduler.awaitIdle("a");
+        assertEquals(13, done.size());
+        assertEquals(0, scheduler.shutdown(1000));
+    }
+
+    public void testLimitedGroupDoesNotHoldThreads() throws Exception {
+        KeyedScheduler  scheduler = new KeyedScheduler("test", 2, 1000);
+        CountDownLatch  release = new CountDownLatch(1);
+        AtomicInteger   running = new AtomicInteger();
+        AtomicInteger   maxRunning = new AtomicInteger();
+        AtomicInteger   others = new AtomicInteger();
+        scheduler.limitGroup("throttled", () -> 1);
+        for (int i = 0; i < 5; i++) {
+            scheduler.submit("throttled", "t" + i, () -> {
+                    maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                    release.await();
+                    return running.decrementAndGet();
+                });
+        }
+        for (int i = 0; i < 20; i++)
+            scheduler.submit("other", "o" + i, () -> others.incrementAndGet());
+        scheduler.awaitIdle("other");           // on the thread the throttled group can't take.
+        assertEquals(20, others.get());
+        assertEquals(4, scheduler.queueDepth());
+
+        release.countDown();
+        scheduler.awaitIdle("throttled");
+        assertEquals(1, maxRunning.get());
+        scheduler.limitGroup("throttled", null);
+        assertEquals(0, scheduler.shutdown(1000));
+    }
+
+    public void testSameKeyOfOtherGroupNotHeldUp() throws Exception {
+        KeyedScheduler  scheduler = new KeyedScheduler("test", 2, 100);
+        CountDownLatch  release = new CountDownLatch(1);
+        CountDownLatch  other = new CountDownLatch(1);
+        scheduler.submit("a", "report.pdf", () -> { release.await(); return 1; });
+        scheduler.submit("b", "report.pdf", () -> { other.countDown(); return 1; });
+        assertTrue(other.await(5, TimeUnit.SECONDS));      // while the same name of group a is still running.
+        release.countDown();
+        scheduler.awaitIdle();
+        assertEquals(0, scheduler.shutdown(1000));
+    }
+
+    public void testThrottledGroupDoesNotBlockSubmission() throws Exception {
+        KeyedScheduler  scheduler = new KeyedScheduler("test", 4, 20);
+        AtomicInteger   others = new AtomicInteger();
+        scheduler.limitGroup("throttled", () -> 1);
+        Thread          throttled = new Thread(() -> {
+                try {
+                    for (int i = 0; i < 40; i++)
+                        scheduler.submit("throttled", "t" + i, () -> { Thread.sleep(200); return 1; });
+                } catch(InterruptedException e) {
+                }
+            });
+        throttled.start();
+        Thread.sleep(100);                      // the throttled group has filled its pending budget.
+        long            startMS = System.currentTimeMillis();
+        for (int i = 0; i < 200; i++)
+            scheduler.submit("other", "o" + i, () -> { Thread.sleep(5); return others.incrementAndGet(); });
+        scheduler.awaitIdle("other");
+        assertEquals(200, others.get());
+        assertTrue(System.currentTimeMillis() - startMS < 3000);     // not held up behind the throttled group, at 200ms a task.
+        throttled.interrupt();
+        scheduler.limitGroup("throttled", null);
+        scheduler.shutdown(0);
+    }
+
+}
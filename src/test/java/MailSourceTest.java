@@ -0,0 +1,112 @@
+import junit.framework.*;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.*;
+import javax.mail.*;
+import javax.mail.internet.*;
+import fetchmailatt.*;
+
+
+
+public class MailSourceTest extends TestCase {
+
+    private static final String STATE = "mailsourcetest";
+
+    private Path    archiveDir;
+    private Path    downloadDir;
+    private Path    appDir;
+    private Session session = Session.getInstance(new Properties());
+
+    protected void setUp() throws Exception {
+        archiveDir = Files.createTempDirectory("fetchmailatt-archive");
+        downloadDir = Files.createTempDirectory("fetchmailatt-download");
+        appDir = Files.createTempDirectory("fetchmailatt-home");
+        System.setProperty("fetchmailatt.home", appDir.toString());    // the state files, not in the real ~/.fetchmailatt.
+    }
+
+    protected void tearDown() throws Exception {
+        delete(archiveDir);
+        delete(downloadDir);
+        System.clearProperty("fetchmailatt.home");
+        delete(appDir);
+    }
+
+    public void testMbox() throws Exception {
+        CorpusGenerator corpus = new CorpusGenerator(20, 2, CorpusGenerator.parseSizes("uniform:1k-32k"), 1);
+        Path            mbox = archiveDir.resolve("archive.mbox");
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(mbox))) {
+            for (MimeMessage msg : corpus.generate(session)) {
+                out.write("From alice@example.com Thu Jul  9 10:00:00 2015\n".getBytes(StandardCharsets.US_ASCII));
+                msg.writeTo(out);
+                out.write('\n');
+            }
+        }
+        fetch("mbox", mbox);
+        assertDownloaded(corpus);
+        assertTrue(Files.isDirectory(downloadDir.resolve("2015")));
+
+        fetch("mbox", mbox);        // the files of the messages since the last date are skipped.
+        assertDownloaded(corpus);
+    }
+
+    public void testMaildir() throws Exception {
+        CorpusGenerator corpus = new CorpusGenerator(9, 2, CorpusGenerator.parseSizes("16k"), 2);
+        List<MimeMessage>   messages = corpus.generate(session);
+        for (int i = 0; i < messages.size(); i++) {
+            Path    dir = archiveDir.resolve(i % 3 == 0 ? ".Sent" : "").resolve(i % 2 == 0 ? "cur" : "new");
+            Files.createDirectories(dir);
+            try (OutputStream out = Files.newOutputStream(dir.resolve((1436339314 + i) + ".M" + i + "P1.host:2,S"))) {
+                messages.get(i).writeTo(out);
+            }
+        }
+        fetch("maildir", archiveDir);
+        assertDownloaded(corpus);
+        assertTrue(Files.isDirectory(downloadDir.resolve("2015")));
+    }
+
+    public void testEmlTree() throws Exception {
+        CorpusGenerator corpus = new CorpusGenerator(6, 1, CorpusGenerator.parseSizes("uniform:1k-1500k"), 3);
+        List<MimeMessage>   messages = corpus.generate(session);
+        for (int i = 0; i < messages.size(); i++) {
+            Path    dir = archiveDir.resolve("box" + (i % 2));
+            Files.createDirectories(dir);
+            try (OutputStream out = Files.newOutputStream(dir.resolve("msg" + i + ".eml"))) {
+                messages.get(i).writeTo(out);
+            }
+        }
+        fetch("eml", archiveDir);
+        assertDownloaded(corpus);
+    }
+
+    private void fetch(String source, Path path) throws Exception {
+        Map<String, String> config = new HashMap<>();
+        config.put("mail.source", source);
+        config.put("mail.source.path", path.toString());
+        config.put("download.directory", downloadDir.toString());
+        config.put("download.groupby", "year");
+        config.put("process.prefetch.chunk", "4");
+        config.put("process.parallel.workers", "2");
+        MailService.fetchAttachments(config, STATE, true, false);
+    }
+
+    private void assertDownloaded(CorpusGenerator corpus) throws Exception {
+        try (Stream<Path> paths = Files.walk(downloadDir)) {
+            List<Path>  files = paths.filter(Files::isRegularFile).collect(Collectors.toList());
+            long        bytes = 0;
+            for (Path f : files)
+                bytes += Files.size(f);
+            assertEquals(corpus.attachmentCount(), files.size());
+            assertEquals(corpus.attachmentBytes(), bytes);
+        }
+    }
+
+    private static void delete(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path p : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList()))
+                Files.delete(p);
+        }
+    }
+
+}
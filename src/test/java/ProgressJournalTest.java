@@ -0,0 +1,76 @@
+
+import junit.framework.*;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import fetchmailatt.*;
+
+
+
+public class ProgressJournalTest extends TestCase {
+
+    private Path    file;
+
+    protected void setUp() throws Exception {
+        file = Files.createTempFile("progress", ".journal");
+        Files.delete(file);
+    }
+
+    protected void tearDown() throws Exception {
+        Files.deleteIfExists(file);
+    }
+
+
+    public void testReplayAfterCrash() throws Exception {
+        RunStats        stats = new RunStats();
+        ProgressJournal journal = new ProgressJournal(file, stats);
+        journal.open(60000);
+        journal.part("INBOX", 7, 3, "2");
+        journal.watermark("INBOX", 7, 2, Util.dateYYYYMMdd().parse("2015-03-01"));
+        journal.watermark("INBOX", 7, 5, Util.dateYYYYMMdd().parse("2015-03-02"));
+        journal.close();                // the file is kept, as a killed run leaves it.
+        assertEquals(1, stats.get("journal.syncs"));
+        Files.write(file, "P\tINBOX\t7\t4".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);  // cut off by the crash.
+
+        Properties      state = new Properties();
+        state.put("download.uidvalidity.INBOX", "7");
+        state.put("download.last.uid.INBOX", "1");
+        state.put("download.last.date", "2015-01-01");
+        ProgressJournal replayed = new ProgressJournal(file, stats);
+        assertEquals(3, replayed.recover(state));
+        assertEquals("5", state.getProperty("download.last.uid.INBOX"));
+        assertEquals("2015-03-02", state.getProperty("download.last.date.INBOX"));
+        assertEquals("2015-03-02", state.getProperty("download.last.date"));
+        assertTrue(replayed.isDone("INBOX", 7, 3, "2"));
+        assertFalse(replayed.isDone("INBOX", 7, 4, "2"));
+        assertFalse(replayed.isDone("INBOX", 8, 3, "2"));
+    }
+
+    public void testWatermarkNotBehindState() throws Exception {
+        Files.write(file, "W\tINBOX\t7\t5\t2015-03-02\nW\tWork\t9\t4\t2015-01-01\n".getBytes(StandardCharsets.UTF_8));
+        Properties      state = new Properties();
+        state.put("download.uidvalidity.INBOX", "7");
+        state.put("download.last.uid.INBOX", "10");
+        state.put("download.last.date.INBOX", "2015-04-01");
+        state.put("download.uidvalidity.Work", "3");
+        state.put("download.last.uid.Work", "20");
+        new ProgressJournal(file, new RunStats()).recover(state);
+        assertEquals("10", state.getProperty("download.last.uid.INBOX"));
+        assertEquals("2015-04-01", state.getProperty("download.last.date.INBOX"));
+        assertEquals("9", state.getProperty("download.uidvalidity.Work"));     // the folder was recreated after the save.
+        assertEquals("4", state.getProperty("download.last.uid.Work"));
+    }
+
+    public void testDeleteOnCompaction() throws Exception {
+        ProgressJournal journal = new ProgressJournal(file, new RunStats());
+        journal.open(60000);
+        journal.part("INBOX", 7, 3, "2");
+        journal.sync();
+        assertTrue(Files.size(file) > 0);
+        journal.delete();
+        assertFalse(Files.exists(file));
+        assertEquals(0, new ProgressJournal(file, new RunStats()).recover(new Properties()));
+    }
+
+}
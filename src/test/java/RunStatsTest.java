@@ -0,0 +1,54 @@
+import junit.framework.*;
+import java.util.*;
+import java.lang.management.ManagementFactory;
+import javax.management.*;
+import fetchmailatt.*;
+
+
+
+public class RunStatsTest extends TestCase {
+
+    public void testHistogramPercentiles() throws Exception {
+        Histogram   timer = new Histogram();
+        for (int i = 1; i <= 100; i++)
+            timer.record(i * 1000000L);                 // 1ms to 100ms
+        assertEquals(100, timer.count());
+        assertEquals(100000000L, timer.maxNanos());
+        assertEquals(50.5e6, timer.meanNanos(), 1);
+        long    p50 = timer.percentileNanos(0.5);
+        assertTrue(p50 >= 50000000L && p50 < 100000000L);   // within the power of 2 bucket of 50ms.
+        assertEquals(timer.maxNanos(), timer.percentileNanos(1.0));
+        assertEquals(0, new Histogram().percentileNanos(0.5));
+    }
+
+    public void testJsonSummary() throws Exception {
+        RunStats    stats = new RunStats();
+        stats.add("parts.downloaded", 3);
+        stats.timer("download").record(2000000L);
+        stats.gauge("queue.download", () -> 7);
+        String      json = stats.toJson("acct \"1\"", 0, 1234, new ArrayList<Pipeline.StageStats>());
+        assertTrue(json.contains("\"account\": \"acct \\\"1\\\"\""));
+        assertTrue(json.contains("\"duration.ms\": 1234"));
+        assertTrue(json.contains("\"parts.downloaded\": 3"));
+        assertTrue(json.contains("\"queue.download\": 7"));
+        assertTrue(json.contains("\"download\": {\"count\": 1"));
+        assertTrue(json.contains("\"stages\": []"));
+    }
+
+    public void testMBeanAttributes() throws Exception {
+        RunStats    stats = new RunStats();
+        stats.inc("messages.scanned");
+        stats.timer("search").record(5000000L);
+        ObjectName  name = RunStatsBean.register("test,account", stats);
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            assertEquals(1L, server.getAttribute(name, "messages.scanned"));
+            assertEquals(1L, server.getAttribute(name, "search.count"));
+            assertEquals(5.0, (Double)server.getAttribute(name, "search.max.ms"), 0.001);
+            assertEquals("Metrics", name.getKeyProperty("type"));
+        } finally {
+            RunStatsBean.unregister(name);
+        }
+    }
+
+}
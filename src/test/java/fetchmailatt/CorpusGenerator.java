@@ -0,0 +1,140 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: FetchMailAtt
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2015 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+package fetchmailatt;
+
+import java.util.*;
+import javax.activation.DataHandler;
+import javax.mail.*;
+import javax.mail.internet.*;
+import javax.mail.util.ByteArrayDataSource;
+
+
+/**
+ * Generates the messages of a test mailbox: a number of messages with a number of attachments each,
+ * the attachment sizes drawn from a distribution.  The same seed generates the same corpus.
+ * The attachment filenames are unique, so every attachment is downloaded to its own file.
+ */
+public class CorpusGenerator {
+
+    /** Attachment sizes in bytes. */
+    public static interface SizeDistribution {
+        public long next(Random random);
+    }
+
+    private static final String[]   TYPES = { "pdf", "csv", "jpg", "png", "zip" };
+    private static final String[]   SENDERS = { "Alice <alice@example.com>", "Bob <bob@example.org>", "Carol <carol@example.net>" };
+
+    private final int               messageCount;
+    private final int               attachmentCount;
+    private final SizeDistribution  sizes;
+    private final long              seed;
+    private int                     htmlBytes;
+    private long                    attachmentBytes;
+
+    public CorpusGenerator(int messageCount, int attachmentCount, SizeDistribution sizes, long seed) {
+        this.messageCount = messageCount;
+        this.attachmentCount = attachmentCount;
+        this.sizes = sizes;
+        this.seed = seed;
+    }
+
+    /** Add an html body of about htmlBytes to each message, as in the newsletters.  0 for a short text body only. */
+    public CorpusGenerator htmlBody(int htmlBytes) {
+        this.htmlBytes = htmlBytes;
+        return this;
+    }
+
+    /**
+     * Parse the size distribution spec:
+     *   64k                    fixed size
+     *   uniform:16k-256k       uniform between the min and the max
+     *   lognormal:64k,1.0      log-normal with the median and the sigma, a long tail of large files as in real mailboxes
+     */
+    public static SizeDistribution parseSizes(String spec) {
+        spec = spec.trim().toLowerCase();
+        if (spec.startsWith("uniform:")) {
+            String[]    range = spec.substring("uniform:".length()).split("-");
+            long        min = Util.parseByteSize(range[0], 0);
+            long        max = Util.parseByteSize(range[1], 0);
+            return random -> min + (long)(random.nextDouble() * (max - min + 1));
+        } else if (spec.startsWith("lognormal:")) {
+            String[]    params = spec.substring("lognormal:".length()).split(",");
+            long        median = Util.parseByteSize(params[0], 0);
+            double      sigma = Double.parseDouble(params[1]);
+            return random -> Math.max(1, (long)(median * Math.exp(sigma * random.nextGaussian())));
+        } else {
+            long        size = Util.parseByteSize(spec, 0);
+            return random -> size;
+        }
+    }
+
+    public int messageCount() {
+        return messageCount;
+    }
+
+    public int attachmentCount() {
+        return messageCount * attachmentCount;
+    }
+
+    /** Total bytes of the attachments generated so far. */
+    public long attachmentBytes() {
+        return attachmentBytes;
+    }
+
+    public List<MimeMessage> generate(Session session) throws MessagingException {
+        Random              random = new Random(seed);
+        List<MimeMessage>   messages = new ArrayList<>();
+        attachmentBytes = 0;
+        for (int i = 0; i < messageCount; i++)
+            messages.add(message(session, random, i));
+        return messages;
+    }
+
+    private MimeMessage message(Session session, Random random, int index) throws MessagingException {
+        MimeMessage     msg = new MimeMessage(session);
+        msg.setFrom(new InternetAddress(SENDERS[index % SENDERS.length]));
+        msg.setRecipients(Message.RecipientType.TO, "bench@localhost");
+        msg.setSubject("Corpus message " + index);
+        msg.setSentDate(new Date());
+
+        MimeMultipart   mp = new MimeMultipart();
+        MimeBodyPart    text = new MimeBodyPart();
+        text.setText("Message " + index);
+        mp.addBodyPart(text);
+        if (htmlBytes > 0) {
+            StringBuilder   html = new StringBuilder("<html><body>");
+            while (html.length() < htmlBytes)
+                html.append("<p>Newsletter ").append(index).append(" paragraph ").append(random.nextInt()).append("</p>\n");
+            MimeBodyPart    htmlPart = new MimeBodyPart();
+            htmlPart.setContent(html.append("</body></html>").toString(), "text/html");
+            mp.addBodyPart(htmlPart);
+        }
+        for (int j = 0; j < attachmentCount; j++) {
+            byte[]          data = new byte[(int)Math.min(sizes.next(random), Integer.MAX_VALUE - 8)];
+            random.nextBytes(data);
+            attachmentBytes += data.length;
+            MimeBodyPart    att = new MimeBodyPart();
+            att.setDataHandler(new DataHandler(new ByteArrayDataSource(data, "application/octet-stream")));
+            att.setFileName("att-" + index + "-" + j + "." + TYPES[(index + j) % TYPES.length]);
+            att.setDisposition(Part.ATTACHMENT);
+            mp.addBodyPart(att);
+        }
+        msg.setContent(mp);
+        msg.saveChanges();
+        return msg;
+    }
+
+}
@@ -0,0 +1,137 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: FetchMailAtt
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2015 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+package fetchmailatt;
+
+import java.net.*;
+import java.nio.file.*;
+import java.util.*;
+import javax.mail.*;
+import javax.mail.internet.*;
+import com.icegreen.greenmail.user.GreenMailUser;
+import com.icegreen.greenmail.util.GreenMail;
+import com.icegreen.greenmail.util.ServerSetup;
+
+
+/**
+ * In-process IMAP server for the tests and the benchmarks, on a free local port, optionally behind a ThrottleProxy.
+ *
+ *     try (ImapFixture imap = new ImapFixture().populate(new CorpusGenerator(100, 2, CorpusGenerator.parseSizes("64k"), 1))) {
+ *         MailService.fetchAttachments(imap.config(downloadDir), "test", true, false);
+ *     }
+ */
+public class ImapFixture implements AutoCloseable {
+
+    public static final String  USER = "bench";
+    public static final String  PASSWORD = "bench";
+
+    private final int           imapPort;
+    private final GreenMail     greenMail;
+    private final GreenMailUser user;
+    private ThrottleProxy       proxy;
+
+    public ImapFixture() throws Exception {
+        imapPort = freePort();
+        greenMail = new GreenMail(new ServerSetup(imapPort, "127.0.0.1", ServerSetup.PROTOCOL_IMAP));
+        greenMail.start();
+        user = greenMail.setUser(USER + "@localhost", USER, PASSWORD);
+    }
+
+    /** Deliver the generated messages into the INBOX. */
+    public ImapFixture populate(CorpusGenerator corpus) throws Exception {
+        for (MimeMessage msg : corpus.generate(Session.getInstance(new Properties())))
+            user.deliver(msg);
+        prewarm();
+        return this;
+    }
+
+    /** Put the server behind a proxy with the latency in each direction and the bandwidth limit (0 for none). */
+    public ImapFixture throttle(long latencyMS, long bytesPerSec) throws Exception {
+        if (proxy != null)
+            proxy.close();
+        proxy = new ThrottleProxy("127.0.0.1", imapPort, latencyMS, bytesPerSec);
+        return this;
+    }
+
+    public int port() {
+        return proxy != null ? proxy.port() : imapPort;
+    }
+
+    /** Break the connections through the proxy once the server has sent the bytes. */
+    public ImapFixture failAfter(long bytes) {
+        proxy.failAfter(bytes);
+        return this;
+    }
+
+    /** Drop the connections through the proxy once the server has sent the bytes, still letting the client reconnect. */
+    public ImapFixture dropAfter(long bytes) {
+        proxy.dropAfter(bytes);
+        return this;
+    }
+
+    /** The bytes the server has sent through the proxy. */
+    public long bytesDown() {
+        return proxy != null ? proxy.bytesDown() : 0;
+    }
+
+    /** The most connections open through the proxy at the same time. */
+    public int maxConnections() {
+        return proxy != null ? proxy.maxConnections() : 0;
+    }
+
+    /** Config to fetch everything in the INBOX into downloadDir, without resuming or pausing at exit. */
+    public Map<String, String> config(Path downloadDir) {
+        Map<String, String> config = new HashMap<>();
+        config.put("mail.host", "127.0.0.1");
+        config.put("mail.port", String.valueOf(port()));
+        config.put("mail.store.protocol", "imap");
+        config.put("mail.username", USER);
+        config.put("mail.password", PASSWORD);
+        config.put("mail.folder", "INBOX");
+        config.put("download.directory", downloadDir.toString());
+        config.put("process.resume.from.last", "no");
+        config.put("process.sleep.before.exit", "0");
+        return config;
+    }
+
+    // The server builds the BODYSTRUCTURE of a message on its first fetch, unsafely when the connections fetch it at the same time.
+    // Fetch them all once on one connection.
+    private void prewarm() throws Exception {
+        Store   store = Session.getInstance(new Properties()).getStore("imap");
+        store.connect("127.0.0.1", imapPort, USER, PASSWORD);
+        try {
+            Folder      inbox = store.getFolder("INBOX");
+            inbox.open(Folder.READ_ONLY);
+            FetchProfile    fp = new FetchProfile();
+            fp.add(FetchProfile.Item.CONTENT_INFO);
+            inbox.fetch(inbox.getMessages(), fp);
+        } finally {
+            store.close();
+        }
+    }
+
+    private static int freePort() throws Exception {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    public void close() {
+        if (proxy != null)
+            proxy.close();
+        greenMail.stop();
+    }
+
+}
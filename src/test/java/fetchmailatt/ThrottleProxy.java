@@ -0,0 +1,210 @@
+/******************************************************************************
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0.  If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific language governing rights and limitations under the License.
+ *
+ * The Original Code is: FetchMailAtt
+ * The Initial Developer of the Original Code is: William Wong (williamw520@gmail.com)
+ * Portions created by William Wong are Copyright (C) 2015 William Wong, All Rights Reserved.
+ *
+ ******************************************************************************/
+
+package fetchmailatt;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+
+/**
+ * TCP proxy adding a one way latency to each direction and limiting the bandwidth, to stand in for a remote mail server.
+ * The bandwidth limit of each direction is shared by all the connections, as on one network link.
+ * Latency delays the data without limiting the throughput; the bytes in flight are not bounded.
+ */
+public class ThrottleProxy implements AutoCloseable {
+
+    private static final int    CHUNK = 16 * 1024;
+
+    private static class Chunk {
+        final byte[]    data;
+        final int       length;
+        final long      dueNS;
+
+        Chunk(byte[] data, int length, long dueNS) {
+            this.data = data;
+            this.length = length;
+            this.dueNS = dueNS;
+        }
+    }
+
+    // Paces the bytes sent to bytesPerSec, across the threads sharing it.
+    private static class RateLimiter {
+        private final long  bytesPerSec;
+        private long        nextFreeNS = System.nanoTime();
+
+        RateLimiter(long bytesPerSec) {
+            this.bytesPerSec = bytesPerSec;
+        }
+
+        void acquire(int bytes) throws InterruptedException {
+            if (bytesPerSec <= 0)
+                return;
+            long    doneNS;
+            synchronized(this) {
+                nextFreeNS = Math.max(nextFreeNS, System.nanoTime()) + bytes * 1000000000L / bytesPerSec;
+                doneNS = nextFreeNS;
+            }
+            sleepUntil(doneNS);
+        }
+    }
+
+    private final String            targetHost;
+    private final int               targetPort;
+    private final long              latencyNS;
+    private final RateLimiter       upstream;
+    private final RateLimiter       downstream;
+    private final ServerSocket      serverSocket;
+    private final List<Socket>      sockets = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicLong        bytesDown = new AtomicLong();
+    private final AtomicLong        dropAfterBytes = new AtomicLong();
+    private final AtomicInteger     openConnections = new AtomicInteger();
+    private final AtomicInteger     maxConnections = new AtomicInteger();
+    private volatile long           failAfterBytes;
+    private volatile boolean        closed;
+
+    /** Listen on a free local port, forwarding to the target.  bytesPerSec of 0 for no limit. */
+    public ThrottleProxy(String targetHost, int targetPort, long latencyMS, long bytesPerSec) throws IOException {
+        this.targetHost = targetHost;
+        this.targetPort = targetPort;
+        this.latencyNS = latencyMS * 1000000L;
+        this.upstream = new RateLimiter(bytesPerSec);
+        this.downstream = new RateLimiter(bytesPerSec);
+        this.serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        startThread(this::acceptLoop, "proxy-accept");
+    }
+
+    public int port() {
+        return serverSocket.getLocalPort();
+    }
+
+    /** Drop all the connections once the server has sent the bytes, as a broken link would. */
+    public void failAfter(long bytes) {
+        failAfterBytes = bytes;
+    }
+
+    /** Drop the connections open once the server has sent the bytes, and keep accepting new ones, as a server cutting off its clients would. */
+    public void dropAfter(long bytes) {
+        dropAfterBytes.set(bytes);
+    }
+
+    /** The bytes sent from the server to the clients so far. */
+    public long bytesDown() {
+        return bytesDown.get();
+    }
+
+    /** The most connections open at the same time so far. */
+    public int maxConnections() {
+        return maxConnections.get();
+    }
+
+    private void acceptLoop() {
+        try {
+            while (!closed) {
+                Socket  client = serverSocket.accept();
+                Socket  server = new Socket(targetHost, targetPort);
+                client.setTcpNoDelay(true);
+                server.setTcpNoDelay(true);
+                sockets.add(client);
+                sockets.add(server);
+                maxConnections.accumulateAndGet(openConnections.incrementAndGet(), Math::max);
+                pipe(client, server, upstream, null, openConnections::decrementAndGet, "up");
+                pipe(server, client, downstream, bytesDown, () -> {}, "down");
+            }
+        } catch(IOException e) {
+            // closed
+        }
+    }
+
+    // A reader thread stamps each chunk with its due time; a writer thread sends it when due, at the paced rate.
+    private void pipe(Socket from, Socket to, RateLimiter limiter, AtomicLong counter, Runnable onClosed, String direction) throws IOException {
+        BlockingQueue<Chunk>    queue = new LinkedBlockingQueue<>();
+        InputStream             in = from.getInputStream();
+        OutputStream            out = to.getOutputStream();
+        startThread(() -> {
+                try {
+                    while (true) {
+                        byte[]  buf = new byte[CHUNK];
+                        int     n = in.read(buf);
+                        queue.put(new Chunk(buf, n, System.nanoTime() + latencyNS));
+                        if (n < 0)
+                            return;
+                    }
+                } catch(Exception e) {
+                    queue.add(new Chunk(null, -1, 0));
+                }
+            }, "proxy-read-" + direction);
+        startThread(() -> {
+                try {
+                    while (true) {
+                        Chunk   chunk = queue.take();
+                        if (chunk.length < 0)
+                            break;
+                        sleepUntil(chunk.dueNS);
+                        limiter.acquire(chunk.length);
+                        out.write(chunk.data, 0, chunk.length);
+                        out.flush();
+                        long    total = counter != null ? counter.addAndGet(chunk.length) : 0;
+                        long    dropAt = dropAfterBytes.get();
+                        if (failAfterBytes > 0 && total >= failAfterBytes)
+                            close();
+                        else if (dropAt > 0 && total >= dropAt && dropAfterBytes.compareAndSet(dropAt, 0))
+                            dropConnections();
+                    }
+                } catch(Exception e) {
+                    // connection closed
+                }
+                closeQuietly(from);
+                closeQuietly(to);
+                onClosed.run();
+            }, "proxy-write-" + direction);
+    }
+
+    private static void sleepUntil(long dueNS) throws InterruptedException {
+        long    waitNS = dueNS - System.nanoTime();
+        if (waitNS > 0)
+            TimeUnit.NANOSECONDS.sleep(waitNS);
+    }
+
+    private static void startThread(Runnable runnable, String name) {
+        Thread  t = new Thread(runnable, name);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch(IOException ignored) {
+        }
+    }
+
+    private void dropConnections() {
+        synchronized(sockets) {
+            sockets.forEach(ThrottleProxy::closeQuietly);
+            sockets.clear();
+        }
+    }
+
+    public void close() {
+        closed = true;
+        closeQuietly(serverSocket);
+        dropConnections();
+    }
+
+}